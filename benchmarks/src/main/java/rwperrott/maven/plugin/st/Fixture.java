@@ -0,0 +1,173 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A temporary project directory, with a RenderMojo.Context, and synthetic Groups and Templates, for the benchmarks.
+ * <p>
+ * Each synthetic template renders a class with one indented line per row, so the output size is controlled by the
+ * number of rows. They also declare arguments "a1" to "a15", which are unused, for attribute application.
+ */
+final class Fixture implements AutoCloseable {
+    // About the length of a rendered row
+    private static final int ROW_LENGTH = 32;
+    static final int MAX_ATTRIBUTES = 16;
+    private static final String FORMAL_ARGS;
+
+    static {
+        final StringBuilder sb = new StringBuilder("rows");
+        for (int i = 1; i < MAX_ATTRIBUTES; i++)
+            sb.append(", a").append(i);
+        FORMAL_ARGS = sb.toString();
+    }
+
+    final Path dir;
+    final Path templateSrcDir;
+    final RenderMojo.Context ctx;
+
+    Fixture() throws IOException, MojoFailureException {
+        dir = Files.createTempDirectory("string-template-benchmark");
+        templateSrcDir = Files.createDirectories(dir.resolve("src").resolve("main").resolve("string-template"));
+        final RenderMojo mojo = new RenderMojo();
+        mojo.project = new MavenProject();
+        mojo.project.setFile(dir.resolve("pom.xml").toFile());
+        mojo.templateSrcDir = templateSrcDir.toString();
+        mojo.sourceEncoding = UTF_8.name();
+        ctx = mojo.new Context(new QuietLog());
+    }
+
+    static String templateName(final int index) {
+        return "t" + index;
+    }
+
+    private static String templateSource(final int index) {
+        return templateName(index) + "(" + FORMAL_ARGS + ") ::= <<\n"
+               + "// Template " + index + "\n"
+               + "class T" + index + " {\n"
+               + "    <rows:{r | int <r.name> = <r.value>; // <r.comment>}; separator=\"\\n\">\n"
+               + "}\n"
+               + ">>\n";
+    }
+
+    /**
+     * Returns the source of a synthetic group of templateCount templates, writing any files needed.
+     *
+     * @param type "string", "file" or "dir".
+     */
+    String groupSource(final String type, final int templateCount) throws IOException {
+        final StringBuilder sb = new StringBuilder(templateCount * 128);
+        switch (type) {
+            case "string":
+                for (int i = 0; i < templateCount; i++)
+                    sb.append(templateSource(i)).append('\n');
+                return sb.toString();
+            case "file": {
+                for (int i = 0; i < templateCount; i++)
+                    sb.append(templateSource(i)).append('\n');
+                final Path file = templateSrcDir.resolve("group" + templateCount + ".stg");
+                Files.write(file, sb.toString().getBytes(UTF_8));
+                return file.toString();
+            }
+            case "dir": {
+                final Path groupDir = Files.createDirectories(templateSrcDir.resolve("group" + templateCount));
+                for (int i = 0; i < templateCount; i++)
+                    Files.write(groupDir.resolve(templateName(i) + ".st"), templateSource(i).getBytes(UTF_8));
+                return groupDir.toString();
+            }
+            default:
+                throw new IllegalArgumentException("unknown group type: " + type);
+        }
+    }
+
+    /**
+     * Returns an initialised, but not loaded, Group.
+     */
+    Group group(final String source) throws Exception {
+        final Group group = new Group();
+        group.id = "g";
+        group.source = source;
+        group.init(ctx);
+        return group;
+    }
+
+    /**
+     * Returns an initialised Template, rendering about outputSize chars to a file in the project directory.
+     */
+    Template template(final Group group, final int index, final int outputSize,
+                      final String targetEncoding, final boolean withUnicodeBOM) throws Exception {
+        final Template template = new Template();
+        template.id = "t" + index;
+        template.groupId = group.id;
+        template.name = templateName(index);
+        template.jsonAttributes = rowsJSON(outputSize);
+        template.target = "target/out/" + template.name + ".txt";
+        template.targetEncoding = targetEncoding;
+        template.withUnicodeBOM = withUnicodeBOM;
+        template.init(ctx, group);
+        return template;
+    }
+
+    /**
+     * Returns a JSON attribute Map with enough rows to render about outputSize chars.
+     */
+    static String rowsJSON(final int outputSize) {
+        final int rows = Math.max(1, outputSize / ROW_LENGTH);
+        final StringBuilder sb = new StringBuilder(rows * 64).append("{\"rows\":[");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0)
+                sb.append(',');
+            // Some non-ASCII, so that encoding isn't all fast-path
+            sb.append("{\"name\":\"f").append(i)
+              .append("\",\"value\":").append(i * 31)
+              .append(",\"comment\":\"").append((i & 7) == 0 ? "r\u00e9sum\u00e9 \u00b5s" : "plain")
+              .append("\"}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            ctx.close();
+        } finally {
+            try (Stream<Path> s = Files.walk(dir)) {
+                s.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Discards the per-render info messages, which would swamp the JMH output.
+     */
+    private static final class QuietLog extends SystemStreamLog {
+        @Override
+        public boolean isInfoEnabled() {
+            return false;
+        }
+
+        @Override
+        public void info(final CharSequence content) {
+        }
+
+        @Override
+        public void info(final CharSequence content, final Throwable error) {
+        }
+
+        @Override
+        public void info(final Throwable error) {
+        }
+    }
+}
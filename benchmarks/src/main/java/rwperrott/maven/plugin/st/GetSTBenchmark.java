@@ -0,0 +1,66 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures CompiledGroup.Instance.getST, for templates already in its stCache, which binds the formal arguments of the
+ * cached ST to an AttributeScope.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GetSTBenchmark {
+    @Param({"string", "file", "dir"})
+    public String groupType;
+
+    @Param({"10", "100"})
+    public int templateCount;
+
+    // Number of attributes applied to each ST, up to Fixture.MAX_ATTRIBUTES
+    @Param({"0", "1", "16"})
+    public int attributeCount;
+
+    private Fixture fixture;
+    private Group group;
+    private CompiledGroup.Instance instance;
+    private AttributeScope attributes = AttributeScope.EMPTY;
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = new Fixture();
+        group = fixture.group(fixture.groupSource(groupType, templateCount));
+        group.call();
+        instance = group.acquire();
+        if (attributeCount > 0) {
+            final StringBuilder sb = new StringBuilder("{\"rows\":[]");
+            for (int i = 1; i < attributeCount; i++)
+                sb.append(",\"a").append(i).append("\":").append(i);
+            attributes = AttributeScope.of(fixture.ctx.readJSONMap(sb.append('}').toString(), "attributes", 0));
+        }
+        // Fill the cache
+        for (int i = 0; i < templateCount; i++)
+            instance.getST(Fixture.templateName(i), attributes, group);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        group.release(instance);
+        fixture.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public void getST(final Blackhole bh) {
+        for (int i = 0; i < 100; i++)
+            bh.consume(instance.getST(Fixture.templateName(i % templateCount), attributes, group));
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures loading a synthetic Group, and compiling all its templates, which an STGroupDir only does on first use.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupLoadBenchmark {
+    @Param({"string", "file", "dir"})
+    public String groupType;
+
+    @Param({"10", "100"})
+    public int templateCount;
+
+    private Fixture fixture;
+    private String source;
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = new Fixture();
+        source = fixture.groupSource(groupType, templateCount);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void load(final Blackhole bh) throws Exception {
+        final Group group = fixture.group(source);
+        group.call();
+        final CompiledGroup.Instance instance = group.acquire();
+        try {
+            for (int i = 0; i < templateCount; i++)
+                bh.consume(instance.getST(Fixture.templateName(i), AttributeScope.EMPTY, group));
+        } finally {
+            group.release(instance);
+        }
+    }
+}
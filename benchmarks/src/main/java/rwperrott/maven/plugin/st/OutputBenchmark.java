@@ -0,0 +1,99 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.openjdk.jmh.annotations.*;
+import org.stringtemplate.v4.AutoIndentWriter;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Compares writing multi-megabyte template output via the old OutputStreamWriter path, with via EncodingWriter and a
+ * FileChannel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OutputBenchmark {
+    @Param({"UTF-8", "US-ASCII", "UTF-16LE"})
+    public String charset;
+
+    // About 60 bytes of UTF-8 per row
+    @Param({"20000", "100000"})
+    public int rows;
+
+    private Charset targetCharset;
+    private ST st;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        targetCharset = Charset.forName(charset);
+        final STGroup stGroup = new STGroupString(
+                "t(rows) ::= <<\n"
+                + "<rows:{r|    <r.name> = <r.value>; // <r.comment>}; separator=\"\\n\">\n"
+                + ">>\n");
+        st = stGroup.getInstanceOf("t");
+        final List<Row> list = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++)
+            list.add(new Row("name" + i, i * 31L, (i & 7) == 0 ? "r\u00e9sum\u00e9 \u00b5s" : "plain comment"));
+        st.add("rows", list);
+        file = Files.createTempFile("output-benchmark", ".txt");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long outputStreamWriter() throws IOException {
+        try (OutputStream os = Files.newOutputStream(file, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            final Writer w = new OutputStreamWriter(os, targetCharset);
+            st.write(new AutoIndentWriter(w));
+            w.flush();
+        }
+        return Files.size(file);
+    }
+
+    @Benchmark
+    public long encodingWriter() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            try (EncodingWriter w = EncodingWriter.open(targetCharset, channel)) {
+                st.write(new AutoIndentWriter(w));
+            }
+        }
+        return Files.size(file);
+    }
+
+    public static final class Row {
+        public final String name;
+        public final long value;
+        public final String comment;
+
+        Row(final String name, final long value, final String comment) {
+            this.name = name;
+            this.value = value;
+            this.comment = comment;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.openjdk.jmh.annotations.*;
+import org.stringtemplate.v4.AutoIndentWriter;
+import org.stringtemplate.v4.NoIndentWriter;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures only the interpretation of a template, with auto-indent on and off, to a Writer which discards the chars.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int outputSize;
+
+    @Param({"true", "false"})
+    public boolean autoIndent;
+
+    private Fixture fixture;
+    private Group group;
+    private CompiledGroup.Instance instance;
+    private ST st;
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = new Fixture();
+        group = fixture.group(fixture.groupSource("string", 1));
+        group.call();
+        instance = group.acquire();
+        st = instance.getST(Fixture.templateName(0),
+                            AttributeScope.of(fixture.ctx.readJSONMap(Fixture.rowsJSON(outputSize), "rows", 0)),
+                            group);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        group.release(instance);
+        fixture.close();
+    }
+
+    @Benchmark
+    public int render() throws IOException {
+        final NullWriter w = new NullWriter();
+        final STWriter stWriter = autoIndent
+                                  ? new AutoIndentWriter(w)
+                                  : new NoIndentWriter(w);
+        st.write(stWriter, group);
+        return w.count;
+    }
+
+    private static final class NullWriter extends Writer {
+        int count;
+
+        @Override
+        public void write(final int c) {
+            count++;
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(final String str, final int off, final int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
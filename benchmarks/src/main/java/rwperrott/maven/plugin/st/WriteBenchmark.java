@@ -0,0 +1,51 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Template.call, which gets the ST, renders it, then encodes and writes it to the target file, for each
+ * UnicodeBOM charset, and a charset without one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriteBenchmark {
+    @Param({"UTF-8", "UTF-16BE", "UTF-16LE", "UTF-32BE", "UTF-32LE", "ISO-8859-1"})
+    public String targetEncoding;
+
+    @Param({"1000", "100000", "1000000"})
+    public int outputSize;
+
+    @Param({"false", "true"})
+    public boolean writeIfChanged;
+
+    private Fixture fixture;
+    private Template template;
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = new Fixture();
+        final Group group = fixture.group(fixture.groupSource("string", 1));
+        group.call();
+        template = fixture.template(group, 0, outputSize, targetEncoding, true);
+        template.writeIfChanged = writeIfChanged;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void write() throws Exception {
+        template.call();
+    }
+}
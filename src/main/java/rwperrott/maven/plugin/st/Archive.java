@@ -0,0 +1,143 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.lang.String.format;
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.Files.newOutputStream;
+import static java.nio.file.StandardOpenOption.*;
+import static rwperrott.maven.plugin.st.Utils.move;
+
+/**
+ * A zip, or jar, file which the rendered bytes of archived Templates are written to, as entries, in one sequential
+ * stream, so that many small targets don't each cost a file create, and move.
+ * <p>
+ * Entries are added in render completion order, by concurrent renders, so are locked, and kept in memory until commit,
+ * which writes them sorted by name, with the same time, so that unchanged targets give an identical archive. Written to
+ * a temporary sibling, which is only moved to the archive file by commit, so that a failed build leaves the previous
+ * archive intact.
+ */
+final class Archive {
+    // 1980-01-01T00:00:00Z, the earliest zip time
+    private static final long DEFAULT_TIME = 315532800000L;
+    private final Path path;
+    private final Path pathTmp;
+    private final boolean stored;
+    private final long entryTime;
+    private final ZipOutputStream zos;
+    // Content by name, in name order
+    private final Map<String, byte[]> entries = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+    private boolean closed;
+
+    /**
+     * @param stored if true, store entries without compression, which is faster to write and read.
+     * @param time   the time of every entry, in milliseconds since the epoch.
+     */
+    Archive(final Path path, final boolean stored, final long time) throws IOException {
+        this.path = path;
+        this.pathTmp = path.resolveSibling(path.getFileName().toString() + ".tmp");
+        this.stored = stored;
+        // A zip time is local, so offset it to store the same fields in any time zone
+        this.entryTime = time - TimeZone.getDefault().getOffset(time);
+        createDirectories(path.getParent());
+        this.zos = new ZipOutputStream(new BufferedOutputStream(
+                newOutputStream(pathTmp, CREATE, WRITE, TRUNCATE_EXISTING), 65536));
+    }
+
+    /**
+     * Returns the time, in milliseconds since the epoch, of outputTimestamp, ISO-8601, or seconds since the epoch, like
+     * "project.build.outputTimestamp", or 1980-01-01T00:00:00Z if null, or a single char, which disables it.
+     *
+     * @throws java.time.DateTimeException if not valid.
+     */
+    static long time(final String outputTimestamp) {
+        if (null == outputTimestamp || outputTimestamp.length() < 2)
+            return DEFAULT_TIME;
+        if (outputTimestamp.chars().allMatch(Character::isDigit))
+            return Long.parseLong(outputTimestamp) * 1000L;
+        return OffsetDateTime.parse(outputTimestamp).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public String toString() {
+        return "Archive{path=" + path + '}';
+    }
+
+    Path path() {
+        return path;
+    }
+
+    /**
+     * Adds an entry, named by a relative target path, of a copy of the first count bytes of buf.
+     */
+    synchronized void add(final String name, final byte[] buf, final int count) throws IOException {
+        if (null != entries.putIfAbsent(name, Arrays.copyOf(buf, count)))
+            throw new IOException(format("duplicate entry \"%s\" in archive \"%s\"", name, path));
+    }
+
+    /**
+     * Writes the entries, finishes the archive, and moves it to its path.
+     */
+    synchronized void commit(final Log log) throws IOException {
+        for (Map.Entry<String, byte[]> e : entries.entrySet())
+            write(e.getKey(), e.getValue());
+        closed = true;
+        zos.close();
+        move(pathTmp, path);
+        log.info(format("Committed %d entries to archive \"%s\"", entries.size(), path));
+        entries.clear();
+    }
+
+    private void write(final String name, final byte[] content) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setTime(entryTime);
+        if (stored) {
+            // A stored entry must be described before its content
+            crc.reset();
+            crc.update(content, 0, content.length);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        zos.putNextEntry(entry);
+        zos.write(content);
+        zos.closeEntry();
+    }
+
+    /**
+     * Deletes the unfinished archive, leaving any previous one untouched; does nothing after a commit.
+     */
+    synchronized void discard(final Log log) {
+        if (closed)
+            return;
+        closed = true;
+        entries.clear();
+        try {
+            try {
+                zos.close();
+            } finally {
+                Files.deleteIfExists(pathTmp);
+            }
+        } catch (IOException e) {
+            log.warn(format("Failed to delete unfinished archive \"%s\" (%s)", pathTmp, e.getMessage()));
+        }
+    }
+}
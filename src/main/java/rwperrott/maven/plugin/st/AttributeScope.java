@@ -0,0 +1,99 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.compiler.FormalArgument;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable stack of read-only attribute Maps, where a name resolves to its value in the top-most layer containing
+ * it, and a null value removes the name, so hides any value in the layers below.
+ * <p>
+ * Built once per Template, from the Group "*" Map, the Group Map for the template name, then the Template attributes,
+ * so a render doesn't copy, or re-apply, any of them; a dataset element only adds one more layer.
+ * <p>
+ * The layer Maps are shared, so must not be modified after use.
+ */
+final class AttributeScope {
+    static final AttributeScope EMPTY = new AttributeScope(null, null);
+
+    private final AttributeScope below;
+    private final Map<String, ?> layer;
+
+    private AttributeScope(final AttributeScope below, final Map<String, ?> layer) {
+        this.below = below;
+        this.layer = layer;
+    }
+
+    /**
+     * Returns a scope of attributes alone, or EMPTY if null or empty.
+     */
+    static AttributeScope of(final Map<String, ?> attributes) {
+        return EMPTY.with(attributes);
+    }
+
+    /**
+     * Returns a scope with layer on top of this one, or this if layer is null or empty.
+     */
+    AttributeScope with(final Map<String, ?> layer) {
+        return null == layer || layer.isEmpty() ? this : new AttributeScope(this, layer);
+    }
+
+    boolean isEmpty() {
+        return null == layer;
+    }
+
+    /**
+     * Returns the value of name, or null if not in any layer, or removed.
+     */
+    Object get(final String name) {
+        for (AttributeScope s = this; null != s.layer; s = s.below)
+            if (s.layer.containsKey(name))
+                return s.layer.get(name);
+        return null;
+    }
+
+    /**
+     * Returns the value of every name in this scope, in name order, e.g. to serialise them.
+     */
+    Map<String, Object> toMap() {
+        final Deque<Map<String, ?>> layers = new ArrayDeque<>();
+        for (AttributeScope s = this; null != s.layer; s = s.below)
+            layers.push(s.layer);
+        final Map<String, Object> map = new TreeMap<>();
+        for (Map<String, ?> layer : layers) // Bottom-most first
+            layer.forEach((k, v) -> {
+                if (null == v)
+                    map.remove(k);
+                else
+                    map.put(k, v);
+            });
+        return map;
+    }
+
+    /**
+     * Sets every formal argument of st to its value in this scope, or unset if none, replacing the attributes of any
+     * previous render of st.
+     * <p>
+     * A template without formal arguments has nothing to set, so its attributes are resolved from this scope, by
+     * RenderInterpreter, as if they had been added to it.
+     */
+    void bind(final ST st) {
+        final Map<String, FormalArgument> formalArguments = st.impl.formalArguments;
+        if (null == formalArguments)
+            return;
+        for (FormalArgument arg : formalArguments.values()) {
+            final Object value = get(arg.name);
+            // Only unset, so ST.add() stores value as is, rather than in a multi-valued list
+            st.remove(arg.name);
+            if (null != value)
+                st.add(arg.name, value);
+        }
+    }
+}
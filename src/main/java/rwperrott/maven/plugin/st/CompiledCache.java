@@ -0,0 +1,634 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.antlr.runtime.*;
+import org.apache.maven.plugin.logging.Log;
+import org.stringtemplate.v4.*;
+import org.stringtemplate.v4.compiler.Bytecode;
+import org.stringtemplate.v4.compiler.CompilationState;
+import org.stringtemplate.v4.compiler.CompiledST;
+import org.stringtemplate.v4.compiler.Compiler;
+import org.stringtemplate.v4.compiler.FormalArgument;
+import org.stringtemplate.v4.compiler.GroupLexer;
+import org.stringtemplate.v4.compiler.GroupParser;
+import org.stringtemplate.v4.misc.ErrorType;
+import org.stringtemplate.v4.misc.Interval;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.createDirectories;
+import static rwperrott.maven.plugin.st.Utils.move;
+import static rwperrott.maven.plugin.st.Utils.readAllBytes;
+
+/**
+ * A directory of compiled STGroupFile and STGroupString content, keyed by a digest of the source content, encoding,
+ * delimiters, and StringTemplate version, so that an unchanged group source isn't parsed and compiled again.
+ * <p>
+ * Only the interpreted state of each CompiledST is saved; the debug only token stream and AST aren't, so STViz can't
+ * show cached templates. Anonymous sub-templates are renamed when restored, like a parse names them.
+ * <p>
+ * Entries are never pruned, so a directory under target is best.
+ */
+final class CompiledCache {
+    private final Path dir;
+    private final Log log;
+
+    CompiledCache(final Path dir, final Log log) {
+        this.dir = dir;
+        this.log = log;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledCache{dir=" + dir + '}';
+    }
+
+    /**
+     * Restores group from an entry, or parses it then saves an entry, if the parse reported no errors.
+     *
+     * @param group     must be set as already loaded before calling, because a parse looks up templates.
+     * @param imports   the import tokens recorded by group.
+     * @param templates the templates map of group.
+     */
+    private void load(final STGroup group,
+                      final byte[] content,
+                      final List<Token> imports,
+                      final Map<String, CompiledST> templates,
+                      final Map<String, Map<String, Object>> dictionaries,
+                      final Runnable parse) {
+        final String key = new Fingerprint()
+                .add(FORMAT)
+                .add(ST.VERSION)
+                .add(group.getClass().getSuperclass().getName())
+                .add(group.encoding)
+                .add(String.valueOf(new char[]{group.delimiterStartChar, group.delimiterStopChar}))
+                .add(content)
+                .toHex();
+        final Path path = dir.resolve(key + ".cst");
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            new Decoder(in, group).read(imports, templates, dictionaries);
+            if (log.isDebugEnabled())
+                log.debug(format("Restored \"%s\" from compiled cache entry \"%s\"", group.getFileName(), path));
+            return;
+        } catch (NoSuchFileException e) {
+            // Miss
+        } catch (IOException | RuntimeException e) {
+            // Corrupt or unreadable, so parse and replace it
+            templates.clear();
+            dictionaries.clear();
+            group.getImportedGroups().clear();
+            imports.clear();
+        }
+
+        final STErrorListener listener = group.getListener();
+        final ErrorCounter counter = new ErrorCounter(listener);
+        group.setListener(counter);
+        try {
+            parse.run();
+        } finally {
+            group.setListener(listener);
+        }
+        if (counter.count() > 0)
+            return;
+
+        try {
+            if (!dictionariesRoundTrip(group, dictionaries))
+                throw new IOException("dictionaries don't decode in the same key order");
+            createDirectories(dir);
+            final Path pathTmp = Files.createTempFile(dir, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(pathTmp)))) {
+                new Encoder(out).write(group, imports, templates, dictionaries);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(pathTmp);
+                throw e;
+            }
+            move(pathTmp, path);
+        } catch (IOException | RuntimeException e) {
+            // Only costs a parse next time
+            log.warn(format("Failed to write compiled cache entry \"%s\" (%s)", path, e.getMessage()));
+        }
+    }
+
+    /**
+     * Returns true if dictionaries decode with the same keys, in the same order, and values, so that a template
+     * iterating a dictionary renders the same after a cache hit as after a parse.
+     * <p>
+     * Checked before writing an entry, because it only costs an encode and decode of the, usually few, dictionaries.
+     */
+    static boolean dictionariesRoundTrip(final STGroup group, final Map<String, Map<String, Object>> dictionaries)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            new Encoder(out).writeDictionaries(dictionaries);
+        }
+        final Map<String, Map<String, Object>> decoded = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            new Decoder(in, group).readDictionaries(decoded);
+        }
+        synchronized (dictionaries) {
+            if (!new ArrayList<>(dictionaries.keySet()).equals(new ArrayList<>(decoded.keySet())))
+                return false;
+            for (Map.Entry<String, Map<String, Object>> e : dictionaries.entrySet()) {
+                final Map<String, Object> dictionary = e.getValue();
+                final Map<String, Object> copy = decoded.get(e.getKey());
+                if (!new ArrayList<>(dictionary.keySet()).equals(new ArrayList<>(copy.keySet())))
+                    return false;
+                for (Map.Entry<String, Object> d : dictionary.entrySet()) {
+                    final Object v = d.getValue();
+                    final Object c = copy.get(d.getKey());
+                    // A template value is compiled again, so is only the same kind
+                    if (v instanceof ST ? !(c instanceof ST) : !Objects.equals(v, c))
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A caching replacement for the STGroupFile created by STGroupType.
+     */
+    static final class GroupFile extends STGroupFile {
+        private final CompiledCache cache;
+        private final List<Token> importTokens = new ArrayList<>();
+
+        GroupFile(final URL url, final String encoding, final CompiledCache cache) {
+            super(url, encoding, '<', '>');
+            this.cache = cache;
+        }
+
+        @Override
+        public void importTemplates(final Token fileNameToken) {
+            importTokens.add(fileNameToken);
+            super.importTemplates(fileNameToken);
+        }
+
+        @Override
+        public synchronized void load() {
+            if (alreadyLoaded)
+                return;
+            alreadyLoaded = true; // do before actual load to say we're doing it
+            final byte[] content;
+            try (InputStream is = url.openStream()) {
+                content = readAllBytes(is);
+            } catch (IOException e) {
+                errMgr.IOError(null, ErrorType.CANT_LOAD_GROUP_FILE, e, url.toString());
+                return;
+            }
+            cache.load(this, content, importTokens, templates, dictionaries, () -> parse(content));
+        }
+
+        // Same as STGroup.loadGroupFile, except from the already read content.
+        private void parse(final byte[] content) {
+            try {
+                final ANTLRInputStream fs = new ANTLRInputStream(new ByteArrayInputStream(content), encoding);
+                fs.name = url.toString();
+                final GroupParser parser = new GroupParser(new CommonTokenStream(new GroupLexer(fs)));
+                parser.group(this, "/");
+            } catch (Exception e) {
+                errMgr.IOError(null, ErrorType.CANT_LOAD_GROUP_FILE, e, url.toString());
+            }
+        }
+    }
+
+    /**
+     * A caching replacement for the STGroupString created by STGroupType.
+     */
+    static final class GroupString extends STGroupString {
+        private final CompiledCache cache;
+        private final List<Token> importTokens = new ArrayList<>();
+
+        GroupString(final String sourceName, final String text, final CompiledCache cache) {
+            super(sourceName, text, '<', '>');
+            this.cache = cache;
+        }
+
+        @Override
+        public void importTemplates(final Token fileNameToken) {
+            importTokens.add(fileNameToken);
+            super.importTemplates(fileNameToken);
+        }
+
+        @Override
+        public synchronized void load() {
+            if (alreadyLoaded)
+                return;
+            alreadyLoaded = true;
+            cache.load(this, text.getBytes(UTF_8), importTokens, templates, dictionaries, this::parse);
+        }
+
+        // Same as STGroupString.load
+        private void parse() {
+            try {
+                final ANTLRStringStream fs = new ANTLRStringStream(text);
+                fs.name = sourceName;
+                final GroupParser parser = new GroupParser(new CommonTokenStream(new GroupLexer(fs)));
+                parser.group(this, "/");
+            } catch (Exception e) {
+                errMgr.IOError(null, ErrorType.CANT_LOAD_GROUP_FILE, e, "<string>");
+            }
+        }
+    }
+
+    /**
+     * Writes each distinct CompiledST once, so that aliases and shared sub-templates keep their identity.
+     */
+    private static final class Encoder {
+        private final DataOutputStream out;
+        private final Map<CompiledST, Integer> ids = new IdentityHashMap<>();
+
+        private Encoder(final DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write(final STGroup group,
+                   final List<Token> imports,
+                   final Map<String, CompiledST> templates,
+                   final Map<String, Map<String, Object>> dictionaries) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeChar(group.delimiterStartChar);
+            out.writeChar(group.delimiterStopChar);
+            out.writeInt(imports.size());
+            for (Token t : imports)
+                writeToken(t);
+            synchronized (templates) { // Collections.synchronizedMap
+                out.writeInt(templates.size());
+                for (Map.Entry<String, CompiledST> e : templates.entrySet()) {
+                    writeString(e.getKey());
+                    writeCompiled(e.getValue());
+                }
+            }
+            writeDictionaries(dictionaries);
+        }
+
+        // In key order, because a template iterating a dictionary walks its keys in source order
+        void writeDictionaries(final Map<String, Map<String, Object>> dictionaries) throws IOException {
+            synchronized (dictionaries) {
+                out.writeInt(dictionaries.size());
+                for (Map.Entry<String, Map<String, Object>> e : dictionaries.entrySet()) {
+                    writeString(e.getKey());
+                    final Map<String, Object> dictionary = e.getValue();
+                    out.writeInt(dictionary.size());
+                    for (Map.Entry<String, Object> d : dictionary.entrySet()) {
+                        writeString(d.getKey());
+                        writeValue(d.getValue());
+                    }
+                }
+            }
+        }
+
+        private void writeCompiled(final CompiledST c) throws IOException {
+            if (null == c) {
+                out.writeByte(NULL);
+                return;
+            }
+            final Integer id = ids.get(c);
+            if (null != id) {
+                out.writeByte(REF);
+                out.writeInt(id);
+                return;
+            }
+            ids.put(c, ids.size());
+            out.writeByte(NEW);
+            writeString(c.name);
+            writeString(c.prefix);
+            writeString(c.template);
+            writeToken(c.templateDefStartToken);
+            out.writeBoolean(c.hasFormalArgs);
+            out.writeInt(c.numberOfArgsWithDefaultValues);
+            out.writeBoolean(c.isRegion);
+            out.writeInt(null == c.regionDefType ? -1 : c.regionDefType.ordinal());
+            out.writeBoolean(c.isAnonSubtemplate);
+            final Map<String, FormalArgument> formalArguments = c.formalArguments;
+            if (null == formalArguments)
+                out.writeInt(-1);
+            else {
+                out.writeInt(formalArguments.size());
+                for (FormalArgument a : formalArguments.values()) {
+                    writeString(a.name);
+                    out.writeInt(a.index);
+                    writeToken(a.defaultValueToken);
+                    writeValue(a.defaultValue);
+                    writeCompiled(a.compiledDefaultValue);
+                }
+            }
+            final List<CompiledST> implicit = c.implicitlyDefinedTemplates;
+            if (null == implicit)
+                out.writeInt(-1);
+            else {
+                out.writeInt(implicit.size());
+                for (CompiledST sub : implicit)
+                    writeCompiled(sub);
+            }
+            final String[] strings = c.strings;
+            if (null == strings)
+                out.writeInt(-1);
+            else {
+                out.writeInt(strings.length);
+                for (String s : strings)
+                    writeString(s);
+            }
+            out.writeInt(c.codeSize);
+            out.write(c.instrs, 0, c.codeSize);
+            final Interval[] sourceMap = c.sourceMap;
+            out.writeInt(sourceMap.length);
+            for (Interval i : sourceMap) {
+                out.writeBoolean(null != i);
+                if (null != i) {
+                    out.writeInt(i.a);
+                    out.writeInt(i.b);
+                }
+            }
+        }
+
+        private void writeValue(final Object v) throws IOException {
+            if (null == v)
+                out.writeByte(NULL);
+            else if (v == STGroup.DICT_KEY) // Compared by identity
+                out.writeByte(DICT_KEY);
+            else if (v instanceof String) {
+                out.writeByte(STRING);
+                writeString((String) v);
+            } else if (v instanceof Boolean) {
+                out.writeByte((Boolean) v ? TRUE : FALSE);
+            } else if (v instanceof List && ((List<?>) v).isEmpty()) {
+                out.writeByte(EMPTY_LIST);
+            } else if (v instanceof ST) {
+                out.writeByte(TEMPLATE);
+                writeCompiled(((ST) v).impl);
+            } else
+                throw new IOException("Unsupported value type " + v.getClass().getName());
+        }
+
+        private void writeToken(final Token t) throws IOException {
+            out.writeBoolean(null != t);
+            if (null == t)
+                return;
+            out.writeInt(t.getType());
+            writeString(t.getText());
+            out.writeInt(t.getLine());
+            out.writeInt(t.getCharPositionInLine());
+            if (t instanceof CommonToken) {
+                final CommonToken ct = (CommonToken) t;
+                out.writeInt(ct.getStartIndex());
+                out.writeInt(ct.getStopIndex());
+            } else {
+                out.writeInt(-1);
+                out.writeInt(-1);
+            }
+        }
+
+        // Not writeUTF, because limited to 64K bytes.
+        private void writeString(final String s) throws IOException {
+            if (null == s) {
+                out.writeInt(-1);
+                return;
+            }
+            final byte[] bytes = s.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static final class Decoder {
+        private final DataInputStream in;
+        private final STGroup group;
+        private final List<CompiledST> byId = new ArrayList<>();
+
+        private Decoder(final DataInputStream in, final STGroup group) {
+            this.in = in;
+            this.group = group;
+        }
+
+        void read(final List<Token> imports,
+                  final Map<String, CompiledST> templates,
+                  final Map<String, Map<String, Object>> dictionaries) throws IOException {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a compiled cache entry");
+            group.delimiterStartChar = in.readChar();
+            group.delimiterStopChar = in.readChar();
+            for (int i = in.readInt(); i > 0; i--)
+                group.importTemplates(readToken()); // Records token in imports again
+            for (int i = in.readInt(); i > 0; i--) {
+                final String name = readString();
+                templates.put(name, readCompiled());
+            }
+            readDictionaries(dictionaries);
+            renameAnonSubtemplates(templates);
+        }
+
+        /**
+         * Gives each anonymous sub-template a new name, and rewrites the calls of it, because the names read were
+         * numbered by the JVM which wrote the entry, so can be those of a sub-template compiled since, e.g. by an
+         * imported group, which a lookup via this group would then shadow.
+         */
+        private void renameAnonSubtemplates(final Map<String, CompiledST> templates) throws IOException {
+            final Map<String, String> renames = new HashMap<>();
+            for (CompiledST c : byId)
+                if (c.isAnonSubtemplate) {
+                    final String name = c.prefix + Compiler.getNewSubtemplateName();
+                    if (!name.equals(c.name))
+                        renames.put(c.name, name);
+                    c.name = name;
+                }
+            if (renames.isEmpty())
+                return;
+            for (CompiledST c : byId)
+                renameCalls(c, renames);
+            synchronized (templates) { // Collections.synchronizedMap
+                final Map<String, CompiledST> renamed = new LinkedHashMap<>(templates.size());
+                for (Map.Entry<String, CompiledST> e : templates.entrySet()) {
+                    final CompiledST c = e.getValue();
+                    renamed.put(null != c && c.isAnonSubtemplate ? c.name : e.getKey(), c);
+                }
+                templates.clear();
+                templates.putAll(renamed);
+            }
+        }
+
+        /**
+         * Points each INSTR_NEW of c, which calls a renamed template, at its new name, added to the strings of c,
+         * because the old one may also be the text of a literal.
+         */
+        private static void renameCalls(final CompiledST c, final Map<String, String> renames) throws IOException {
+            final byte[] instrs = c.instrs;
+            Map<String, Integer> added = null;
+            for (int ip = 0; ip < c.codeSize; ) {
+                final int opcode = instrs[ip];
+                final Bytecode.Instruction instruction = opcode > 0 && opcode < Bytecode.instructions.length
+                                                         ? Bytecode.instructions[opcode]
+                                                         : null;
+                if (null == instruction)
+                    throw new IOException("Invalid instruction " + opcode);
+                if (Bytecode.INSTR_NEW == opcode) {
+                    final String name = c.strings[Interpreter.getShort(instrs, ip + 1)];
+                    // A relative name is resolved via the prefix of the caller
+                    final boolean relative = name.charAt(0) != '/';
+                    final String renamed = renames.get(relative ? c.prefix + name : name);
+                    if (null != renamed) {
+                        final String ref = relative && renamed.startsWith(c.prefix)
+                                           ? renamed.substring(c.prefix.length())
+                                           : renamed;
+                        if (null == added)
+                            added = new HashMap<>();
+                        Integer index = added.get(ref);
+                        if (null == index) {
+                            index = c.strings.length;
+                            c.strings = Arrays.copyOf(c.strings, index + 1);
+                            c.strings[index] = ref;
+                            added.put(ref, index);
+                        }
+                        CompilationState.writeShort(instrs, ip + 1, (short) (int) index);
+                    }
+                }
+                ip += 1 + instruction.nopnds * Bytecode.OPND_SIZE_IN_BYTES;
+            }
+        }
+
+        // A LinkedHashMap, like GroupParser, so that iteration is in source order
+        void readDictionaries(final Map<String, Map<String, Object>> dictionaries) throws IOException {
+            for (int i = in.readInt(); i > 0; i--) {
+                final String name = readString();
+                final int n = in.readInt();
+                final Map<String, Object> dictionary = new LinkedHashMap<>(n);
+                for (int j = 0; j < n; j++) {
+                    final String key = readString();
+                    dictionary.put(key, readValue());
+                }
+                dictionaries.put(name, dictionary);
+            }
+        }
+
+        private CompiledST readCompiled() throws IOException {
+            switch (in.readByte()) {
+                case NULL:
+                    return null;
+                case REF:
+                    return byId.get(in.readInt());
+                case NEW:
+                    break;
+                default:
+                    throw new IOException("Invalid CompiledST tag");
+            }
+            final CompiledST c = new CompiledST();
+            byId.add(c);
+            c.nativeGroup = group;
+            c.name = readString();
+            c.prefix = readString();
+            c.template = readString();
+            c.templateDefStartToken = readToken();
+            c.hasFormalArgs = in.readBoolean();
+            c.numberOfArgsWithDefaultValues = in.readInt();
+            c.isRegion = in.readBoolean();
+            final int regionDefType = in.readInt();
+            c.regionDefType = regionDefType < 0 ? null : ST.RegionType.values()[regionDefType];
+            c.isAnonSubtemplate = in.readBoolean();
+            final int argCount = in.readInt();
+            if (argCount >= 0) {
+                // Same type as CompiledST.addArg creates
+                final Map<String, FormalArgument> formalArguments
+                        = Collections.synchronizedMap(new LinkedHashMap<>(argCount));
+                for (int i = 0; i < argCount; i++) {
+                    final FormalArgument a = new FormalArgument(readString());
+                    a.index = in.readInt();
+                    a.defaultValueToken = readToken();
+                    a.defaultValue = readValue();
+                    a.compiledDefaultValue = readCompiled();
+                    formalArguments.put(a.name, a);
+                }
+                c.formalArguments = formalArguments;
+            }
+            final int implicitCount = in.readInt();
+            if (implicitCount >= 0) {
+                final List<CompiledST> implicit = new ArrayList<>(implicitCount);
+                for (int i = 0; i < implicitCount; i++)
+                    implicit.add(readCompiled());
+                c.implicitlyDefinedTemplates = implicit;
+            }
+            final int stringCount = in.readInt();
+            if (stringCount >= 0) {
+                final String[] strings = new String[stringCount];
+                for (int i = 0; i < stringCount; i++)
+                    strings[i] = readString();
+                c.strings = strings;
+            } else
+                c.strings = null;
+            final int codeSize = in.readInt();
+            final byte[] instrs = new byte[codeSize];
+            in.readFully(instrs);
+            c.codeSize = codeSize;
+            c.instrs = instrs;
+            final Interval[] sourceMap = new Interval[in.readInt()];
+            for (int i = 0; i < sourceMap.length; i++)
+                if (in.readBoolean())
+                    sourceMap[i] = new Interval(in.readInt(), in.readInt());
+            c.sourceMap = sourceMap;
+            return c;
+        }
+
+        private Object readValue() throws IOException {
+            switch (in.readByte()) {
+                case NULL:
+                    return null;
+                case DICT_KEY:
+                    return STGroup.DICT_KEY;
+                case STRING:
+                    return readString();
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case EMPTY_LIST:
+                    return Collections.emptyList();
+                case TEMPLATE:
+                    // Same as STGroup.createSingleton, without the compile
+                    return group.createStringTemplateInternally(readCompiled());
+                default:
+                    throw new IOException("Invalid value tag");
+            }
+        }
+
+        private Token readToken() throws IOException {
+            if (!in.readBoolean())
+                return null;
+            final CommonToken t = new CommonToken(in.readInt(), readString());
+            t.setLine(in.readInt());
+            t.setCharPositionInLine(in.readInt());
+            t.setStartIndex(in.readInt());
+            t.setStopIndex(in.readInt());
+            return t;
+        }
+
+        private String readString() throws IOException {
+            final int n = in.readInt();
+            if (n < 0)
+                return null;
+            final byte[] bytes = new byte[n];
+            in.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+    }
+
+    // Change if the entry layout changes
+    private static final String FORMAT = "1";
+    private static final int MAGIC = 0x53544743; // "STGC"
+    // Tags
+    private static final byte NULL = 0;
+    private static final byte NEW = 1;
+    private static final byte REF = 2;
+    private static final byte STRING = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte EMPTY_LIST = 6;
+    private static final byte TEMPLATE = 7;
+    private static final byte DICT_KEY = 8;
+}
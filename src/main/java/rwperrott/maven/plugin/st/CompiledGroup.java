@@ -0,0 +1,332 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.stringtemplate.v4.AutoIndentWriter;
+import org.stringtemplate.v4.NoIndentWriter;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STErrorListener;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STWriter;
+import org.stringtemplate.v4.compiler.STException;
+import org.stringtemplate.v4.misc.STMessage;
+import rwperrott.stringtemplate.v4.STErrorConsumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static java.lang.String.format;
+import static java.nio.charset.Charset.forName;
+import static org.stringtemplate.v4.misc.ErrorType.NO_SUCH_PROPERTY;
+import static rwperrott.maven.plugin.st.UnicodeBOM.of;
+
+/**
+ * A thread-safe handle of a compiled group, from Engine.compile, which renders its templates to bytes or a channel.
+ * <p>
+ * Each concurrent render uses its own STGroup and ST instances, sharing the compiled templates, like a Group which
+ * renders templates concurrently; instances are pooled, up to the number of processors, so a warm handle doesn't
+ * allocate them again, which stCacheHits() and stCacheMisses() show.
+ * <p>
+ * A Group also renders via one, using only its pool of Instances.
+ */
+public final class CompiledGroup {
+    // More threads may render, but their Instances aren't kept after a burst
+    private static final int MAX_IDLE_INSTANCES = Runtime.getRuntime().availableProcessors();
+    private final String id;
+    private final STGroup stGroup;
+    private final String encoding;
+    // Null if of a Group
+    private final Engine engine;
+    private final Consumer<STGroup> modelAdaptors;
+    private final int maxIdleInstances;
+    // If false, all Instances use stGroup, because only one thread renders at a time
+    private final boolean concurrent;
+    // Null if not of a Group
+    private final Metrics.Record metrics;
+    // Instances not in use by a thread, at most maxIdleInstances
+    private final Queue<Instance> instances = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleInstances = new AtomicInteger();
+    private final LongAdder stCacheHits = new LongAdder();
+    private final LongAdder stCacheMisses = new LongAdder();
+
+    // Used by Engine.compile()
+    CompiledGroup(final String id, final STGroup stGroup, final String encoding, final Engine engine,
+                  final Map<String, String> modelAdaptors, final boolean jsonTree) {
+        this(id, stGroup, encoding, engine, g -> engine.registerModelAdaptors(g, modelAdaptors, jsonTree),
+             MAX_IDLE_INSTANCES, true, null);
+    }
+
+    /**
+     * @param modelAdaptors    registers the model adaptors on the STGroup of an Instance.
+     * @param maxIdleInstances the most Instances kept, when not in use.
+     * @param concurrent       if true, each Instance has its own STGroup, importing stGroup.
+     * @param metrics          counts the ST cache hits and misses, as well as this.
+     */
+    // Used by Group.call()
+    CompiledGroup(final String id, final STGroup stGroup, final String encoding, final Engine engine,
+                  final Consumer<STGroup> modelAdaptors, final int maxIdleInstances, final boolean concurrent,
+                  final Metrics.Record metrics) {
+        this.id = id;
+        this.stGroup = stGroup;
+        this.encoding = encoding;
+        this.engine = engine;
+        this.modelAdaptors = modelAdaptors;
+        this.maxIdleInstances = maxIdleInstances;
+        this.concurrent = concurrent;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledGroup{id=" + id + '}';
+    }
+
+    public String id() {
+        return id;
+    }
+
+    /**
+     * Returns the number of renders which reused a pooled ST instance.
+     */
+    public long stCacheHits() {
+        return stCacheHits.sum();
+    }
+
+    /**
+     * Returns the number of renders which created an ST instance, because their pooled Instance hadn't used the
+     * template before.
+     */
+    public long stCacheMisses() {
+        return stCacheMisses.sum();
+    }
+
+    /**
+     * Renders the named template, with attributes, to bytes.
+     *
+     * @throws STException if the template is missing, or reported an error.
+     */
+    public byte[] render(final String name, final Map<String, ?> attributes, final Options options) {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(8192);
+        render(name, attributes, options, null, os);
+        return os.toByteArray();
+    }
+
+    /**
+     * Renders the named template, with attributes, to channel, which isn't closed.
+     *
+     * @return the number of bytes written.
+     * @throws STException if the template is missing, or reported an error.
+     */
+    public long render(final String name, final Map<String, ?> attributes, final Options options,
+                       final WritableByteChannel channel) {
+        return render(name, attributes, options, channel, null);
+    }
+
+    // Only one of channel and os is not null
+    @SuppressWarnings("UseSpecificCatch")
+    private long render(final String name, final Map<String, ?> attributes, final Options options,
+                        final WritableByteChannel channel, final ByteArrayOutputStream os) {
+        Objects.requireNonNull(options, "options");
+        final Listener listener = new Listener(name, options.allowNoSuchProperty);
+        final Instance instance = acquire();
+        final long bytes;
+        try {
+            final AttributeScope scope = AttributeScope.of(attributes);
+            final ST st = instance.getST(name, scope, listener);
+            final EncodingWriter w = null != channel
+                                     ? EncodingWriter.open(options.charset, channel)
+                                     : EncodingWriter.open(options.charset, os);
+            try {
+                write(st, w, options.withUnicodeBOM ? options.unicodeBOM : null, options.autoIndent, listener, scope,
+                      null);
+            } finally {
+                w.close();
+            }
+            bytes = w.bytes();
+        } catch (STException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new STException(format("render failed for template \"%s\" of group id '%s' (%s)",
+                                         name, id, e.getMessage()), e);
+        } finally {
+            release(instance);
+        }
+        final STMessage error = listener.error;
+        if (null != error)
+            throw new STException(format("render failed for template \"%s\" of group id '%s' (%s)", name, id, error),
+                                  error.cause instanceof Exception ? (Exception) error.cause : null);
+        return bytes;
+    }
+
+    /**
+     * Writes the Unicode BOM, if not null, then renders st, bound to attributes, to w, reporting errors to listener,
+     * and recording the templates used in dependencies, if not null.
+     *
+     * @return the number of chars rendered.
+     */
+    // Also used by Template
+    static long write(final ST st, final EncodingWriter w, final UnicodeBOM unicodeBOM, final boolean autoIndent,
+                      final STErrorListener listener, final AttributeScope attributes,
+                      final Dependencies dependencies) throws IOException {
+        if (null != unicodeBOM)
+            unicodeBOM.write(w);
+
+        // Must provide listener to writer, because don't want it to use STGroup one when concurrent use stops
+        // causing errors.
+        final STWriter stWriter = autoIndent
+                                  ? new AutoIndentWriter(w)
+                                  : new NoIndentWriter(w);
+        RenderInterpreter.write(st, stWriter, listener, attributes, dependencies);
+        return w.chars();
+    }
+
+    /**
+     * Returns an unused Instance, which must be released after use.
+     */
+    // Also used by Group
+    Instance acquire() {
+        final Instance instance = instances.poll();
+        if (null == instance)
+            return newInstance();
+        idleInstances.decrementAndGet();
+        return instance;
+    }
+
+    /**
+     * Returns instance to the pool, unless already full, e.g. after a timed out render left a thread still using one.
+     */
+    // Also used by Group
+    void release(final Instance instance) {
+        if (idleInstances.incrementAndGet() <= maxIdleInstances)
+            instances.add(instance);
+        else
+            idleInstances.decrementAndGet();
+    }
+
+    /**
+     * Discards the pooled Instances, and their cached ST.
+     */
+    // Used by Group, after its Templates are rendered
+    void clear() {
+        instances.clear();
+        idleInstances.set(0);
+    }
+
+    // Locked, because not sure that STGroup import and registration are thread-safe.
+    private synchronized Instance newInstance() {
+        // Each thread needs its own STGroup, for the listener of ST lookup errors.
+        if (!concurrent)
+            return new Instance(stGroup);
+        final STGroup instanceGroup = new STGroup(stGroup.delimiterStartChar, stGroup.delimiterStopChar);
+        instanceGroup.importTemplates(stGroup);
+        registerModelAdaptors(instanceGroup);
+        return new Instance(instanceGroup);
+    }
+
+    // Attribute properties are resolved via the group which created an ST.
+    // Used by Engine.compile()
+    void registerModelAdaptors(final STGroup stGroup) {
+        modelAdaptors.accept(stGroup);
+    }
+
+    /**
+     * How rendered chars are written; immutable, so can be shared by all renders.
+     */
+    public static final class Options {
+        private final Charset charset;
+        private final UnicodeBOM unicodeBOM;
+        private final boolean withUnicodeBOM;
+        private final boolean autoIndent;
+        private final boolean allowNoSuchProperty;
+
+        /**
+         * @param encoding            the charset name to encode rendered chars with.
+         * @param withUnicodeBOM      if true, start with the Unicode BOM of encoding, if it has one.
+         * @param autoIndent          if false, don't indent rendered text.
+         * @param allowNoSuchProperty if true, only log a NO_SUCH_PROPERTY error, rather than fail the render.
+         */
+        public Options(final String encoding, final boolean withUnicodeBOM, final boolean autoIndent,
+                       final boolean allowNoSuchProperty) {
+            final UnicodeBOM bom = of(encoding);
+            this.unicodeBOM = bom;
+            this.charset = null == bom ? forName(encoding) : bom.charset;
+            this.withUnicodeBOM = withUnicodeBOM;
+            this.autoIndent = autoIndent;
+            this.allowNoSuchProperty = allowNoSuchProperty;
+        }
+
+        /**
+         * UTF-8, without a BOM, auto-indented, failing on any error.
+         */
+        public static final Options DEFAULT = new Options("UTF-8", false, true, false);
+    }
+
+    /**
+     * Keeps the first error of a render, which fails it.
+     */
+    private final class Listener implements STErrorConsumer {
+        private final String name;
+        private final boolean allowNoSuchProperty;
+        private STMessage error;
+
+        private Listener(final String name, final boolean allowNoSuchProperty) {
+            this.name = name;
+            this.allowNoSuchProperty = allowNoSuchProperty;
+        }
+
+        @Override
+        public void accept(final String type, STMessage msg) {
+            msg = engine.patch(msg, encoding);
+            if (allowNoSuchProperty && NO_SUCH_PROPERTY == msg.error)
+                engine.logger().warn(format("%s, for template \"%s\" of group id '%s'", msg, name, id));
+            else if (null == error)
+                error = msg;
+        }
+    }
+
+    /**
+     * An STGroup and ST cache, for use by one thread at a time, so concurrent renders of the same template each reuse
+     * the ST of their own Instance.
+     */
+    final class Instance {
+        private final STGroup stGroup;
+        // Cache of previously requested ST
+        private final Map<String, ST> stCache = new HashMap<>();
+
+        private Instance(final STGroup stGroup) {
+            this.stGroup = stGroup;
+        }
+
+        /**
+         * Returns the cached ST for name, bound to attributes, which replaces all the attributes of a previous render.
+         */
+        ST getST(final String name, final AttributeScope attributes, final STErrorListener listener) {
+            stGroup.setListener(listener);
+            // Binding replaces all the attributes of a cached ST, and never adds an argument to a shared template
+            ST st = stCache.get(name);
+            final boolean hit = null != st;
+            if (!hit) {
+                st = stGroup.getInstanceOf(name);
+                if (null == st)
+                    throw new STException(format("no template \"%s\" in group id '%s'", name, id), null);
+                stCache.put(name, st);
+            }
+            (hit ? stCacheHits : stCacheMisses).increment();
+            if (null != metrics)
+                metrics.getST(hit);
+            attributes.bind(st);
+            return st;
+        }
+    }
+}
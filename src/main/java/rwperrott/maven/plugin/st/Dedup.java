@@ -0,0 +1,128 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * The targets written by a build, by content digest, so that a byte-identical target is hard-linked to, or copied from,
+ * the first, rather than written again; and the content digest of each render, by a digest of its inputs, so that a
+ * render of the same Group template, with the same attributes and encoding, as an earlier one is skipped.
+ * <p>
+ * A target is only added once complete, so concurrent identical renders may both be written. Cleared for each render
+ * of a watch, because targets can then change.
+ */
+final class Dedup {
+    private final boolean copy;
+    private final Map<String, Written> byContent = new ConcurrentHashMap<>();
+    private final Map<String, Rendered> byInputs = new ConcurrentHashMap<>();
+    private final LongAdder linked = new LongAdder();
+    private final LongAdder copied = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    // Set by the first failed link, e.g. if the file system doesn't support them, to only copy after it
+    private volatile boolean linkFailed;
+
+    /**
+     * @param copy if true, copy identical targets, rather than hard-linking them.
+     */
+    Dedup(final boolean copy) {
+        this.copy = copy;
+    }
+
+    /**
+     * Returns the digest of the content of an earlier render of inputs, which has a complete target, and counts a
+     * skipped render, or null if none, or inputs is null.
+     */
+    Rendered rendered(final String inputs) {
+        if (null == inputs)
+            return null;
+        final Rendered rendered = byInputs.get(inputs);
+        // A render is only skipped if its target can be reused
+        if (null == rendered || !byContent.containsKey(rendered.digest))
+            return null;
+        skipped.increment();
+        return rendered;
+    }
+
+    /**
+     * Returns a complete target with content of digest, or null if none.
+     */
+    Written written(final String digest) {
+        return byContent.get(digest);
+    }
+
+    /**
+     * Adds a complete target, with content of digest, rendered from inputs, if not null, using dependencies.
+     */
+    void add(final String inputs, final String digest, final Path path, final long size,
+             final Dependencies dependencies) {
+        byContent.putIfAbsent(digest, new Written(path, size));
+        if (null != inputs)
+            byInputs.putIfAbsent(inputs, new Rendered(digest, dependencies));
+    }
+
+    /**
+     * Creates target as a hard-link to source, or a copy of it, if copy, or links fail.
+     */
+    void linkOrCopy(final Path source, final Path target) throws IOException {
+        Files.deleteIfExists(target);
+        if (!copy && !linkFailed) {
+            try {
+                Files.createLink(target, source);
+                linked.increment();
+                return;
+            } catch (UnsupportedOperationException | IOException e) {
+                linkFailed = true;
+            }
+        }
+        Files.copy(source, target, REPLACE_EXISTING);
+        copied.increment();
+    }
+
+    // Used by RenderMojo.Context, before each render of a watch
+    void clear() {
+        byContent.clear();
+        byInputs.clear();
+        linked.reset();
+        copied.reset();
+        skipped.reset();
+    }
+
+    @Override
+    public String toString() {
+        final long linked = this.linked.sum();
+        final long copied = this.copied.sum();
+        return format("%d deduplicated (%d linked, %d copied), %d renders skipped",
+                      linked + copied, linked, copied, skipped.sum());
+    }
+
+    static final class Written {
+        final Path path;
+        final long size;
+
+        private Written(final Path path, final long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    static final class Rendered {
+        final String digest;
+        // Of the Template which rendered it, null if not tracked
+        final Dependencies dependencies;
+
+        private Rendered(final String digest, final Dependencies dependencies) {
+            this.digest = digest;
+            this.dependencies = dependencies;
+        }
+    }
+}
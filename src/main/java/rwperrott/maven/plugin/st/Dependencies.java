@@ -0,0 +1,169 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupDir;
+import org.stringtemplate.v4.STGroupFile;
+import org.stringtemplate.v4.STGroupString;
+import org.stringtemplate.v4.compiler.CompiledST;
+import org.stringtemplate.v4.misc.Misc;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The compiled templates, including sub-template calls and regions, and dictionary groups, which the renders of a
+ * Template actually used, mapped to the source files they came from, for precise invalidation by incremental rendering
+ * and watch.
+ * <p>
+ * Recorded by RenderInterpreter, which adds the template of each scope it executes, so costs a set add per template
+ * call. The first time a template is added, the files a lookup of its name checks, in the Group's own source, are
+ * added too, because every template call is looked up from the Group's STGroup, even one defined by an import.
+ * Thread-safe, because dataset batches render concurrently.
+ */
+final class Dependencies {
+    private final Class<? extends STGroup> stGroupClass;
+    private final URL url;
+    private final Set<CompiledST> templates = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<STGroup> dictionaryGroups = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // URLs of the files a lookup of a template name checked, in the Group's own source
+    private final Set<String> lookups = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * @param stGroupClass the class of the Group's STGroup.
+     * @param url          the source of the Group's STGroup.
+     */
+    Dependencies(final Class<? extends STGroup> stGroupClass, final URL url) {
+        this.stGroupClass = stGroupClass;
+        this.url = url;
+    }
+
+    // Used by RenderInterpreter
+    void addTemplate(final CompiledST impl) {
+        // An anonymous sub-template, or a region, isn't looked up by a name of its own
+        if (templates.add(impl) && !impl.isAnonSubtemplate && !impl.isRegion)
+            addLookup(impl.name);
+    }
+
+    // Used by RenderInterpreter
+    void addDictionaryGroup(final STGroup group) {
+        dictionaryGroups.add(group);
+    }
+
+    /**
+     * Adds everything other used, for a render skipped by Dedup, because an identical render used it.
+     */
+    void addAll(final Dependencies other) {
+        templates.addAll(other.templates);
+        dictionaryGroups.addAll(other.dictionaryGroups);
+        lookups.addAll(other.lookups);
+    }
+
+    /**
+     * Adds the files checked by a lookup of name in the Group's STGroup, so that a template defined later, which would
+     * hide an imported one, is detected.
+     */
+    private void addLookup(final String name) {
+        // STGroupString extends STGroupFile, so must be tested first
+        if (STGroupString.class.isAssignableFrom(stGroupClass))
+            return;
+        if (STGroupFile.class.isAssignableFrom(stGroupClass))
+            lookups.add(url.toString());
+        else
+            lookups.addAll(dirSources(url, Misc.getParent(qualified(name)), qualified(name)));
+    }
+
+    /**
+     * Returns the URLs of the source files used, or null if any can't be known, e.g. of a group defined in code.
+     * <p>
+     * A string group has no source file, because its source is in the POM, so is part of the Group fingerprint.
+     */
+    Set<String> sources() {
+        final Set<String> sources = new TreeSet<>(lookups);
+        for (CompiledST impl : templates) {
+            // An anonymous sub-template is in the same file as its enclosing template, which was also executed
+            if (impl.isAnonSubtemplate)
+                continue;
+            if (!addSources(impl.nativeGroup, impl.isRegion ? null : impl.name, sources))
+                return null;
+        }
+        for (STGroup group : dictionaryGroups)
+            if (!addSources(group, null, sources))
+                return null;
+        return sources;
+    }
+
+    // A null name means anywhere in the group
+    private static boolean addSources(final STGroup group, final String name, final Set<String> sources) {
+        // STGroupString extends STGroupFile, so must be tested first
+        if (group instanceof STGroupString)
+            return true;
+        if (group instanceof STGroupFile) {
+            sources.add(((STGroupFile) group).url.toString());
+            return true;
+        }
+        if (group instanceof STGroupDir) {
+            final URL root = ((STGroupDir) group).root;
+            // A region, or dictionary, could be in any .stg file of the directory
+            if (null == name)
+                sources.add(root.toString());
+            else
+                sources.addAll(dirSources(root, Misc.getParent(name), name));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The files STGroupDir.load() checks for a template: the .stg file of the parent directory, then the .st file.
+     */
+    private static List<String> dirSources(final URL root, final String parent, final String name) {
+        // Names start with "/", so a trailing one would give "//", which is the same file
+        String r = root.toString();
+        if (r.endsWith("/"))
+            r = r.substring(0, r.length() - 1);
+        return Arrays.asList(r + parent + ".stg", r + name + ".st");
+    }
+
+    private static String qualified(final String name) {
+        return name.startsWith("/") ? name : "/" + name;
+    }
+
+    /**
+     * Returns a digest of the content of the source at url, a digest of all the files of a file directory, or "" if
+     * it doesn't exist.
+     */
+    static String digest(final String url) throws IOException {
+        final URL u = new URL(url);
+        final Path dir = path(url);
+        try {
+            if (null != dir && dir.toFile().isDirectory())
+                return new Fingerprint().addTree(dir).toHex();
+            return new Fingerprint().addContent(u).toHex();
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Returns the file system path of url, or null if not a file URL.
+     */
+    static Path path(final String url) {
+        if (!url.startsWith("file:"))
+            return null;
+        try {
+            return Paths.get(new URL(url).toURI()).toAbsolutePath().normalize();
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
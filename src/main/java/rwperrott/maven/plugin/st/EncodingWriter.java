@@ -0,0 +1,305 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A per-thread reusable Writer, which buffers chars, then encodes them into a large byte buffer, which is written to a
+ * channel, or a ByteArrayOutputStream, in large chunks.
+ * <p>
+ * ST writers write a char at a time, so an OutputStreamWriter costs a lock and an encoder call per char; this costs
+ * an array store. UTF-8, US-ASCII and ISO-8859-1 are encoded directly, other charsets via a cached CharsetEncoder.
+ * Unmappable and malformed chars are replaced by '?', like OutputStreamWriter.
+ * <p>
+ * Not thread-safe, and must only be used by the thread which called open(), until closed.
+ */
+final class EncodingWriter extends Writer {
+    private static final int CHARS = 32 * 1024;
+    // Room for several encodings of chars, even in UTF-32, so that writes are large
+    private static final int BYTES = CHARS * 8;
+    private static final ThreadLocal<EncodingWriter> WRITERS = ThreadLocal.withInitial(EncodingWriter::new);
+
+    private final char[] chars = new char[CHARS];
+    private final byte[] bytes = new byte[BYTES];
+    private final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+    private final Map<Charset, CharsetEncoder> encoders = new HashMap<>();
+    // Number of chars in chars
+    private int charCount;
+    // Number of chars encoded since opened
+    private long encodedCount;
+    // Number of bytes written since opened
+    private long writtenCount;
+    // One of the fast paths, or null to use encoder
+    private Fast fast;
+    private CharsetEncoder encoder;
+    private int maxBytesPerChar;
+    // Only one not null while open
+    private WritableByteChannel channel;
+    private ByteArrayOutputStream os;
+    private boolean open;
+
+    private EncodingWriter() {
+    }
+
+    /**
+     * Returns this thread's writer, to write chars encoded in charset to channel.
+     */
+    static EncodingWriter open(final Charset charset, final WritableByteChannel channel) {
+        return WRITERS.get().reset(charset, channel, null);
+    }
+
+    /**
+     * Returns this thread's writer, to write chars encoded in charset to os.
+     */
+    static EncodingWriter open(final Charset charset, final ByteArrayOutputStream os) {
+        return WRITERS.get().reset(charset, null, os);
+    }
+
+    private EncodingWriter reset(final Charset charset, final WritableByteChannel channel,
+                                 final ByteArrayOutputStream os) {
+        // Not an error if already open, because a failed render might not have closed it
+        this.open = true;
+        this.channel = channel;
+        this.os = os;
+        this.charCount = 0;
+        this.encodedCount = 0;
+        this.writtenCount = 0;
+        this.byteBuffer.clear();
+        if (UTF_8.equals(charset)) {
+            fast = Fast.UTF_8;
+            maxBytesPerChar = 3; // A surrogate pair is 4 bytes
+        } else if (US_ASCII.equals(charset)) {
+            fast = Fast.US_ASCII;
+            maxBytesPerChar = 1;
+        } else if (ISO_8859_1.equals(charset)) {
+            fast = Fast.ISO_8859_1;
+            maxBytesPerChar = 1;
+        } else {
+            fast = null;
+            encoder = encoders.computeIfAbsent(charset, c -> c.newEncoder()
+                                                              .onMalformedInput(CodingErrorAction.REPLACE)
+                                                              .onUnmappableCharacter(CodingErrorAction.REPLACE));
+            encoder.reset();
+            maxBytesPerChar = (int) Math.ceil(encoder.maxBytesPerChar());
+        }
+        return this;
+    }
+
+    /**
+     * Writes bytes, like a Unicode BOM, after flushing buffered chars.
+     */
+    void writeBytes(final byte[] b) throws IOException {
+        encodeChars(false);
+        if (byteBuffer.remaining() < b.length)
+            writeByteBuffer();
+        byteBuffer.put(b);
+    }
+
+    /**
+     * Returns the number of chars written since opened.
+     */
+    long chars() {
+        return encodedCount + charCount;
+    }
+
+    /**
+     * Returns the number of bytes written since opened, which is only all of them once closed.
+     */
+    long bytes() {
+        return writtenCount;
+    }
+
+    @Override
+    public void write(final int c) throws IOException {
+        if (charCount == CHARS)
+            encodeChars(false);
+        chars[charCount++] = (char) c;
+    }
+
+    @Override
+    public void write(final char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (charCount == CHARS)
+                encodeChars(false);
+            final int n = Math.min(len, CHARS - charCount);
+            System.arraycopy(cbuf, off, chars, charCount, n);
+            charCount += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(final String str, int off, int len) throws IOException {
+        while (len > 0) {
+            if (charCount == CHARS)
+                encodeChars(false);
+            final int n = Math.min(len, CHARS - charCount);
+            str.getChars(off, off + n, chars, charCount);
+            charCount += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Encodes and writes all buffered chars, except a trailing high surrogate, which needs the next char.
+     */
+    @Override
+    public void flush() throws IOException {
+        encodeChars(false);
+        writeByteBuffer();
+    }
+
+    /**
+     * Encodes and writes all the buffered chars, then releases the writer for reuse by this thread, but doesn't close
+     * the channel or stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open)
+            return;
+        try {
+            encodeChars(true);
+            if (null == fast) {
+                if (byteBuffer.remaining() < 16)
+                    writeByteBuffer();
+                encoder.flush(byteBuffer);
+            }
+            writeByteBuffer();
+        } finally {
+            open = false;
+            channel = null;
+            os = null;
+        }
+    }
+
+    private void encodeChars(final boolean endOfInput) throws IOException {
+        // The encoder must always see the end of input, before it can be flushed
+        if (0 == charCount && (null != fast || !endOfInput))
+            return;
+        final int end = charCount;
+        int n = end;
+        // A pair can't be split between encodings
+        if (!endOfInput && Character.isHighSurrogate(chars[end - 1]))
+            n--;
+        if (byteBuffer.remaining() < n * maxBytesPerChar)
+            writeByteBuffer();
+        if (null != fast) {
+            byteBuffer.position(fast.encode(chars, n, bytes, byteBuffer.position()));
+        } else {
+            final CharBuffer cb = CharBuffer.wrap(chars, 0, n);
+            CoderResult result;
+            while ((result = encoder.encode(cb, byteBuffer, endOfInput)).isOverflow())
+                writeByteBuffer();
+            if (result.isError())
+                throw new IOException("Failed to encode: " + result);
+            n = cb.position();
+        }
+        encodedCount += n;
+        // Keep unencoded chars for the next encoding
+        charCount = end - n;
+        if (charCount > 0)
+            System.arraycopy(chars, n, chars, 0, charCount);
+    }
+
+    private void writeByteBuffer() throws IOException {
+        final int count = byteBuffer.position();
+        if (0 == count)
+            return;
+        if (null != channel) {
+            byteBuffer.flip();
+            while (byteBuffer.hasRemaining())
+                channel.write(byteBuffer);
+        } else
+            os.write(bytes, 0, count);
+        writtenCount += count;
+        byteBuffer.clear();
+    }
+
+    /**
+     * Charsets encoded directly into the byte array.
+     */
+    private enum Fast {
+        UTF_8 {
+            @Override
+            int encode(final char[] chars, final int n, final byte[] bytes, int p) {
+                int i = 0;
+                while (i < n) {
+                    final char c = chars[i++];
+                    if (c < 0x80)
+                        bytes[p++] = (byte) c;
+                    else if (c < 0x800) {
+                        bytes[p++] = (byte) (0xC0 | (c >> 6));
+                        bytes[p++] = (byte) (0x80 | (c & 0x3F));
+                    } else if (Character.isSurrogate(c)) {
+                        final char d;
+                        if (Character.isHighSurrogate(c) && i < n && Character.isLowSurrogate(d = chars[i])) {
+                            i++;
+                            final int cp = Character.toCodePoint(c, d);
+                            bytes[p++] = (byte) (0xF0 | (cp >> 18));
+                            bytes[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                            bytes[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                            bytes[p++] = (byte) (0x80 | (cp & 0x3F));
+                        } else
+                            bytes[p++] = '?'; // Malformed
+                    } else {
+                        bytes[p++] = (byte) (0xE0 | (c >> 12));
+                        bytes[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                        bytes[p++] = (byte) (0x80 | (c & 0x3F));
+                    }
+                }
+                return p;
+            }
+        },
+        US_ASCII {
+            @Override
+            int encode(final char[] chars, final int n, final byte[] bytes, final int p) {
+                return encode(chars, n, bytes, p, 0x80);
+            }
+        },
+        ISO_8859_1 {
+            @Override
+            int encode(final char[] chars, final int n, final byte[] bytes, final int p) {
+                return encode(chars, n, bytes, p, 0x100);
+            }
+        };
+
+        /**
+         * Encodes the first n chars to bytes from p, returning the new byte position.
+         */
+        abstract int encode(char[] chars, int n, byte[] bytes, int p);
+
+        static int encode(final char[] chars, final int n, final byte[] bytes, int p, final int limit) {
+            for (int i = 0; i < n; i++) {
+                final char c = chars[i];
+                if (c < limit)
+                    bytes[p++] = (byte) c;
+                else {
+                    // A pair is one unmappable char
+                    if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(chars[i + 1]))
+                        i++;
+                    bytes[p++] = '?';
+                }
+            }
+            return p;
+        }
+    }
+}
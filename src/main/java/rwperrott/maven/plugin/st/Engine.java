@@ -0,0 +1,164 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupDir;
+import org.stringtemplate.v4.misc.STMessage;
+import rwperrott.stringtemplate.v4.STContext;
+import rwperrott.stringtemplate.v4.STErrorConsumer;
+import rwperrott.stringtemplate.v4.STUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.lang.String.format;
+
+/**
+ * A render engine, without any Maven dependencies, for embedding in a long-lived process, which compiles groups once,
+ * then renders their templates many times, from any number of threads.
+ * <p>
+ * Sources are resolved like the source of a Group: a string containing "::=" is a string group, a path ending in
+ * ".stg" a group file, else a group directory; relative paths are resolved against templateSrcDir.
+ * <p>
+ * The render goal uses the same STGroup instance, encoding and writing code, via Group and Template.
+ */
+public final class Engine implements Closeable {
+    private final Path templateSrcDir;
+    private final Logger logger;
+    private final STContext stContext;
+
+    /**
+     * @param templateSrcDir the directory relative group sources are resolved against.
+     * @param logger         receives group load messages, and template errors which don't fail a render.
+     */
+    public Engine(final Path templateSrcDir, final Logger logger) {
+        this.templateSrcDir = Objects.requireNonNull(templateSrcDir, "templateSrcDir");
+        this.logger = Objects.requireNonNull(logger, "logger");
+        this.stContext = new STContext().allOptions();
+    }
+
+    /**
+     * Compiles a group without renderers or adaptors, with its files read as UTF-8.
+     */
+    public CompiledGroup compile(final String id, final String source) throws IOException {
+        return compile(id, source, "UTF-8", null, null, false);
+    }
+
+    /**
+     * Compiles a group, all at once, except a directory group, which compiles each template on first use.
+     *
+     * @param id                 for messages.
+     * @param source             template text, a .stg file path or URL, or a directory path or URL.
+     * @param encoding           the charset name of any .st and .stg files.
+     * @param attributeRenderers type name to AttributeRenderer class name, as for Group, or null.
+     * @param modelAdaptors      type name to ModelAdaptor class name, as for Group, or null.
+     * @param jsonTree           if true, resolve properties of Jackson JsonNode attributes.
+     * @throws IllegalStateException if the group failed to load.
+     */
+    public CompiledGroup compile(final String id, final String source, final String encoding,
+                                 final Map<String, String> attributeRenderers,
+                                 final Map<String, String> modelAdaptors,
+                                 final boolean jsonTree) throws IOException {
+        if (Objects.requireNonNull(source, "source").trim().isEmpty())
+            throw new IllegalArgumentException("source is blank");
+        Charset.forName(encoding);
+        final STUtils.TypeAndURL typeAndURL = STUtils.resolveTypeAndURL(source, templateSrcDir);
+        final Class<? extends STGroup> stGroupClass = typeAndURL.type.stGroupClass;
+        final STGroup stGroup = STGroupDir.class.isAssignableFrom(stGroupClass)
+                                ? new Group.ConcurrentGroupDir(typeAndURL.url, encoding)
+                                : typeAndURL.type.getSTGroup(id, source, typeAndURL.url, encoding);
+        final Listener listener = new Listener(id);
+        stGroup.setListener(listener);
+        stGroup.load();
+        // StringTemplate doesn't always throw an exception for a load error
+        if (listener.failed)
+            throw new IllegalStateException(format("failed to fully create a %s, for group id '%s'",
+                                                   stGroupClass.getSimpleName(), id));
+        stContext.registerRenderers(stGroup, attributeRenderers);
+        final CompiledGroup group = new CompiledGroup(id, stGroup, encoding, this, modelAdaptors, jsonTree);
+        group.registerModelAdaptors(stGroup);
+        logger.info(format("Group id \"%s\" created a %s \"%s\"",
+                           id, stGroupClass.getSimpleName(), typeAndURL.type.getSource(stGroup)));
+        return group;
+    }
+
+    // Used by CompiledGroup
+    Logger logger() {
+        return logger;
+    }
+
+    // Used by CompiledGroup
+    void registerModelAdaptors(final STGroup stGroup, final Map<String, String> modelAdaptors,
+                               final boolean jsonTree) {
+        stContext.registerModelAdaptors(stGroup, modelAdaptors);
+        if (jsonTree)
+            stGroup.registerModelAdaptor(JsonNode.class, JsonNodeAdaptor.INSTANCE);
+    }
+
+    // Used by CompiledGroup
+    STMessage patch(final STMessage msg, final String encoding) {
+        try {
+            return stContext.patch(msg, encoding);
+        } catch (Exception e) {
+            return msg;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stContext.close();
+    }
+
+    /**
+     * Where an Engine sends its messages; not tied to any logging framework.
+     */
+    public interface Logger {
+        void info(String message);
+
+        void warn(String message);
+
+        void error(String message, Throwable cause);
+
+        /**
+         * Discards all messages.
+         */
+        Logger NONE = new Logger() {
+            @Override
+            public void info(final String message) {
+            }
+
+            @Override
+            public void warn(final String message) {
+            }
+
+            @Override
+            public void error(final String message, final Throwable cause) {
+            }
+        };
+    }
+
+    /**
+     * Logs compile errors of a group, which may be lazy, for a directory group.
+     */
+    private final class Listener implements STErrorConsumer {
+        private final String id;
+        private volatile boolean failed;
+
+        private Listener(final String id) {
+            this.id = id;
+        }
+
+        @Override
+        public void accept(final String type, final STMessage msg) {
+            failed = true;
+            logger.error(format("%s, for group id '%s'", msg, id), msg.cause);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.stringtemplate.v4.STErrorListener;
+import org.stringtemplate.v4.misc.STMessage;
+
+/**
+ * Forwards to another listener, counting the errors, so that a failed load isn't cached.
+ */
+final class ErrorCounter implements STErrorListener {
+    private final STErrorListener listener;
+    private int count;
+
+    ErrorCounter(final STErrorListener listener) {
+        this.listener = listener;
+    }
+
+    int count() {
+        return count;
+    }
+
+    @Override
+    public void compileTimeError(final STMessage msg) {
+        count++;
+        listener.compileTimeError(msg);
+    }
+
+    @Override
+    public void runTimeError(final STMessage msg) {
+        count++;
+        listener.runTimeError(msg);
+    }
+
+    @Override
+    public void IOError(final STMessage msg) {
+        count++;
+        listener.IOError(msg);
+    }
+
+    @Override
+    public void internalError(final STMessage msg) {
+        count++;
+        listener.internalError(msg);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A SHA-256 digest of the inputs of a Group or Template, used to detect when a render can be skipped.
+ * <p>
+ * Every value is length prefixed, so that adjacent values can't run together to give the same digest.
+ */
+final class Fingerprint {
+    private final MessageDigest md;
+    private final byte[] buf = new byte[8192];
+
+    Fingerprint() {
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM must provide SHA-256
+        }
+    }
+
+    Fingerprint add(final String s) {
+        if (null == s)
+            return addLength(-1);
+        return add(s.getBytes(UTF_8));
+    }
+
+    Fingerprint add(final boolean b) {
+        md.update((byte) (b ? 1 : 0));
+        return this;
+    }
+
+    Fingerprint add(final byte[] bytes) {
+        addLength(bytes.length);
+        md.update(bytes);
+        return this;
+    }
+
+    /**
+     * Adds the first count bytes of buf.
+     */
+    Fingerprint add(final byte[] buf, final int count) {
+        addLength(count);
+        md.update(buf, 0, count);
+        return this;
+    }
+
+    /**
+     * Sorted, so that the order of POM map elements doesn't matter.
+     */
+    Fingerprint add(final Map<String, String> map) {
+        if (null == map)
+            return addLength(-1);
+        addLength(map.size());
+        new TreeMap<>(map).forEach((k, v) -> add(k).add(v));
+        return this;
+    }
+
+    Fingerprint addContent(final URL url) throws IOException {
+        try (InputStream is = url.openStream()) {
+            return addContent(is);
+        }
+    }
+
+    Fingerprint addContent(final Path path) throws IOException {
+        try (InputStream is = Files.newInputStream(path)) {
+            return addContent(is);
+        }
+    }
+
+    /**
+     * Adds the relative path and content of every regular file under dir, in path order.
+     */
+    Fingerprint addTree(final Path dir) throws IOException {
+        final Path[] files;
+        try (Stream<Path> s = Files.walk(dir)) {
+            files = s.filter(Files::isRegularFile).sorted().toArray(Path[]::new);
+        }
+        addLength(files.length);
+        for (Path file : files) {
+            add(dir.relativize(file).toString().replace('\\', '/'));
+            addContent(file);
+        }
+        return this;
+    }
+
+    private Fingerprint addContent(final InputStream is) throws IOException {
+        final byte[] buf = this.buf;
+        long n = 0;
+        int r;
+        while ((r = is.read(buf)) >= 0) {
+            md.update(buf, 0, r);
+            n += r;
+        }
+        // Trailing length, because length unknown until read
+        return addLength(n);
+    }
+
+    private Fingerprint addLength(final long n) {
+        for (int shift = 56; shift >= 0; shift -= 8)
+            md.update((byte) (n >>> shift));
+        return this;
+    }
+
+    String toHex() {
+        final byte[] digest = md.digest();
+        final StringBuilder sb = new StringBuilder(digest.length << 1);
+        for (byte b : digest) {
+            sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return sb.toString();
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+}
@@ -0,0 +1,159 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Java Flight Recorder events for Group loads and Template renders, so that they're visible when profiling a build.
+ * <p>
+ * The plugin is built for Java 8, which has no jdk.jfr API to compile against, so the event types are defined at
+ * runtime via jdk.jfr.EventFactory, using reflection. If the JVM lacks JFR, begin() always returns null, as it does
+ * when recording is off, which only costs a call of EventType.isEnabled().
+ */
+final class FlightEvents {
+    private FlightEvents() {
+    }
+
+    private static final String CATEGORY = "StringTemplate";
+
+    static final Type GROUP_LOAD = Type.define(
+            "rwperrott.stringtemplate.GroupLoad", "Group Load", "Creation and loading of a Group's STGroup",
+            String.class, "groupId", "Group Id",
+            String.class, "type", "Type",
+            String.class, "source", "Source");
+
+    static final Type TEMPLATE_RENDER = Type.define(
+            "rwperrott.stringtemplate.TemplateRender", "Template Render",
+            "Rendering, encoding and writing of a Template target",
+            String.class, "templateId", "Template Id",
+            String.class, "name", "Name",
+            String.class, "target", "Target",
+            long.class, "bytes", "Bytes Written");
+
+    static final class Type {
+        private static final Type DISABLED = new Type(null, null, null, null, null, null, null);
+
+        private final Object factory;
+        private final Object eventType;
+        private final MethodHandle isEnabled;
+        private final MethodHandle newEvent;
+        private final MethodHandle begin;
+        private final MethodHandle set;
+        private final MethodHandle commit;
+
+        private Type(final Object factory, final Object eventType, final MethodHandle isEnabled,
+                     final MethodHandle newEvent, final MethodHandle begin, final MethodHandle set,
+                     final MethodHandle commit) {
+            this.factory = factory;
+            this.eventType = eventType;
+            this.isEnabled = isEnabled;
+            this.newEvent = newEvent;
+            this.begin = begin;
+            this.set = set;
+            this.commit = commit;
+        }
+
+        /**
+         * Defines an event type, with fields from triples of type, name and label, or returns a disabled type if JFR
+         * isn't available.
+         */
+        @SuppressWarnings({"unchecked", "UseSpecificCatch"})
+        private static Type define(final String name, final String label, final String description,
+                                   final Object... fields) {
+            try {
+                final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+                final Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class,
+                                                                                               Object.class);
+                final Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+                final Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class,
+                                                                                           List.class);
+                final Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+                final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                final Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+
+                final List<Object> annotations = new ArrayList<>(4);
+                annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Name"), name));
+                annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Label"), label));
+                annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Description"), description));
+                annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Category"),
+                                                              new String[]{CATEGORY}));
+                final List<Object> values = new ArrayList<>(fields.length / 3);
+                for (int i = 0; i < fields.length; i += 3) {
+                    final Object fieldLabel = annotationElement.newInstance(annotation("jdk.jfr.Label"),
+                                                                            fields[i + 2]);
+                    values.add(valueDescriptor.newInstance(fields[i], fields[i + 1],
+                                                           Collections.singletonList(fieldLabel)));
+                }
+
+                final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                final Object factory = eventFactoryClass.getMethod("create", List.class, List.class)
+                                                        .invoke(null, annotations, values);
+                final Object eventType = eventFactoryClass.getMethod("getEventType").invoke(factory);
+                return new Type(factory, eventType,
+                                lookup.findVirtual(eventTypeClass, "isEnabled", methodType(boolean.class)),
+                                lookup.findVirtual(eventFactoryClass, "newEvent", methodType(eventClass)),
+                                lookup.findVirtual(eventClass, "begin", methodType(void.class)),
+                                lookup.findVirtual(eventClass, "set", methodType(void.class, int.class,
+                                                                                  Object.class)),
+                                lookup.findVirtual(eventClass, "commit", methodType(void.class)));
+            } catch (Throwable t) {
+                // No JFR, e.g. Java 8 before 8u262
+                return DISABLED;
+            }
+        }
+
+        private static Class<? extends Annotation> annotation(final String className) throws ClassNotFoundException {
+            return Class.forName(className).asSubclass(Annotation.class);
+        }
+
+        /**
+         * Returns a begun event, or null if recording of this type is off.
+         */
+        Event begin() {
+            if (null == eventType)
+                return null;
+            try {
+                if (!(boolean) isEnabled.invoke(eventType))
+                    return null;
+                final Object event = newEvent.invoke(factory);
+                begin.invoke(event);
+                return new Event(this, event);
+            } catch (Throwable t) {
+                return null;
+            }
+        }
+    }
+
+    static final class Event {
+        private final Type type;
+        private final Object event;
+
+        private Event(final Type type, final Object event) {
+            this.type = type;
+            this.event = event;
+        }
+
+        /**
+         * Sets the field values, in order of definition, then commits, which also ends the event.
+         */
+        void commit(final Object... values) {
+            try {
+                for (int i = 0; i < values.length; i++)
+                    type.set.invoke(event, i, values[i]);
+                type.commit.invoke(event);
+            } catch (Throwable ignored) {
+                // Only lose the event
+            }
+        }
+    }
+}
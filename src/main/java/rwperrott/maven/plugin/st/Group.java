@@ -3,11 +3,18 @@
  */
 package rwperrott.maven.plugin.st;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import org.antlr.runtime.Token;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.STErrorListener;
 import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupDir;
+import org.stringtemplate.v4.STGroupFile;
+import org.stringtemplate.v4.STGroupString;
+import org.stringtemplate.v4.compiler.CompiledST;
+import org.stringtemplate.v4.compiler.FormalArgument;
 import org.stringtemplate.v4.compiler.STException;
 import org.stringtemplate.v4.misc.STMessage;
 import rwperrott.stringtemplate.v4.STErrorConsumer;
@@ -15,33 +22,33 @@ import rwperrott.stringtemplate.v4.STGroupType;
 import rwperrott.stringtemplate.v4.STUtils;
 import rwperrott.stringtemplate.v4.ToStringBuilder;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
 
 import static java.lang.Long.MAX_VALUE;
 import static java.lang.String.format;
 import static java.nio.charset.Charset.forName;
-import static java.util.concurrent.Executors.newSingleThreadExecutor;
-import static java.util.concurrent.Executors.newWorkStealingPool;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
-import static rwperrott.maven.plugin.st.Utils.readAndCheckJSONMap;
 import static rwperrott.maven.plugin.st.Utils.selectThrow;
-import static rwperrott.stringtemplate.v4.STUtils.applyAttributes;
-import static rwperrott.stringtemplate.v4.STUtils.clearAttributes;
+import static rwperrott.maven.plugin.st.Utils.writer;
 
 public final class Group implements STErrorConsumer, Callable<Void> {
     /**
-     * If true, render templates concurrently, using all the CPU cores.
+     * If true, render templates concurrently, limited by the parallelism of the plugin.
      * <p>
-     * Default is false Disabled until ST concurrency bugs in ST4.3.1 are fixed.
+     * Each thread renders via its own STGroup and ST instances, sharing the compiled templates of this group.
+     * <p>
+     * Default is false
      */
-    @SuppressWarnings({"unused"})
-    //@Parameter(defaultValue = "${string-template.renderTemplatesConcurrently}")
-    private final boolean renderTemplatesConcurrently = false;
-    // Cache of previously request ST
-    private final transient Map<String, ST> stCache = new HashMap<>();
+    @Parameter(property = "string-template.renderTemplatesConcurrently")
+    public boolean renderTemplatesConcurrently;
     /**
      * The unique Group id, can be referenced groupId of Templates.
      */
@@ -126,7 +133,7 @@ public final class Group implements STErrorConsumer, Callable<Void> {
     @Parameter
     public Map<String, String> modelAdaptors;
     /**
-     * A java.util.concurrent.TimeUnit for timeout of this.call().
+     * A java.util.concurrent.TimeUnit for timeout of loading and rendering this group.
      * <t>
      * Default is TimeUnit.SECONDS
      */
@@ -134,7 +141,7 @@ public final class Group implements STErrorConsumer, Callable<Void> {
     @Parameter
     public TimeUnit timeoutUnit = SECONDS;
     /**
-     * The duration for timeout of this.call().
+     * The duration for timeout of loading and rendering this group.
      * <t>
      * Default is Long.MAX_VALUE
      */
@@ -150,12 +157,22 @@ public final class Group implements STErrorConsumer, Callable<Void> {
      * This can be useful when a template is used multiple times with some shared attributes, or if all templates have
      * some shared attributes.
      * <p>
-     * The maps are applied to an ST in this order: "*" named map, the template named map, then the jsonAttribute map
-     * provided by the Template object.  If a named null value is provided for an ST, then that attribute is removed
-     * from the ST, rather than added; this can be used to filter out unwanted attributes.
+     * The maps are layered for an ST in this order: "*" named map, the template named map, then the jsonAttribute map
+     * provided by the Template object; an attribute is resolved from the top-most map containing it, without copying
+     * any of them.  If a named null value is provided for an ST, then that attribute is removed from the ST, rather
+     * than added; this can be used to filter out unwanted attributes.
      */
     @Parameter
     public String jsonAttributesByTemplate;
+    /**
+     * Relative or absolute path of a JSON file of a Map of named maps, used like jsonAttributesByTemplate; a named map
+     * in jsonAttributesByTemplate replaces the entries of the same named map from this file.
+     * <p>
+     * If a relative path, it's resolved as a child of "${project.basedir}" directory. Each file is only parsed once,
+     * however many Groups use it.
+     */
+    @Parameter
+    public String jsonAttributesByTemplateFile;
     /**
      * The array of templates to render, for this group.
      */
@@ -167,9 +184,19 @@ public final class Group implements STErrorConsumer, Callable<Void> {
     private transient Map<String, Map<String, ?>> attributesByTemplate;
     private transient STGroupType type;
     private transient STGroup stGroup;
+    // Renders via a pool of Instances, each with the STGroup, or its own one importing it, if concurrent
+    private transient CompiledGroup compiled;
     private URL url;
     private transient RenderMojo.Context ctx;
     private transient boolean failed;
+    // Used by RenderMojo for queue wait
+    transient Metrics.Record metrics;
+    // False while stGroup is loaded and unchanged, which only a watch uses
+    private transient boolean stale = true;
+    // The Templates to render next, null for all; only a watch sets it
+    private transient List<Template> pending;
+    // The Templates submitted by submitTemplates
+    private transient List<Template> rendering;
 
     @Override
     public String toString() {
@@ -183,7 +210,7 @@ public final class Group implements STErrorConsumer, Callable<Void> {
         ts.add("attributeRenderers", attributeRenderers);
         ts.add("modelAdapters", modelAdaptors);
         ts.add("failFast", failFast);
-        //ts.add("renderTemplatesConcurrently", renderTemplatesConcurrently);
+        ts.add("renderTemplatesConcurrently", renderTemplatesConcurrently);
         ts.add("timeoutUnit", timeoutUnit);
         ts.add("timeoutDuration", timeoutDuration);
         ts.add("stGroup", stGroup);
@@ -214,82 +241,242 @@ public final class Group implements STErrorConsumer, Callable<Void> {
                     format("Invalid source \"%s\" (%s)", source, e.getMessage()), e);
         }
 
-        if (jsonAttributesByTemplate != null)
-            attributesByTemplate = readAndCheckJSONMap(jsonAttributesByTemplate, "jsonAttributesByTemplate", 1);
+        this.metrics = ctx.metrics().group(id);
+        final long parseStart = System.nanoTime();
+        if (jsonAttributesByTemplateFile != null)
+            attributesByTemplate = ctx.checkJSONMap(ctx.readJSONFile(jsonAttributesByTemplateFile),
+                                                    "jsonAttributesByTemplateFile", 1);
+        if (jsonAttributesByTemplate != null) {
+            final Map<String, Map<String, ?>> map = ctx.readJSONMap(jsonAttributesByTemplate,
+                                                                    "jsonAttributesByTemplate", 1);
+            if (null == attributesByTemplate)
+                attributesByTemplate = map;
+            else {
+                // Copy, because the file map is shared
+                final Map<String, Map<String, ?>> merged = new LinkedHashMap<>(attributesByTemplate);
+                map.forEach((name, attributes) -> merged.merge(name, attributes, Utils::merge));
+                attributesByTemplate = merged;
+            }
+        }
+        metrics.add(Metrics.Stage.JSON_PARSE, System.nanoTime() - parseStart);
 
         this.ctx = ctx;
         this.failFast |= ctx.failFast();
     }
 
-    // Used by Template.call(), so don't need to expose STGroup.
-    ST getST(final String name, final Map<String, Object> attributes, final STErrorListener listener) {
-        stGroup.setListener(listener);
-        // Get ST via a cache for speed when render not concurrent
-        final ST st;
-        if (renderTemplatesConcurrently)
-            st = Objects.requireNonNull(stGroup.getInstanceOf(name), "st");
-        else
-            st = stCache.compute(name, (k, v) -> {
-                if (null == v)
-                    v = Objects.requireNonNull(stGroup.getInstanceOf(name), "st");
-                else
-                    clearAttributes(v, v.getAttributes());
-                return v;
-            });
-
-        // Set ST attributes
-        if (null != attributesByTemplate) {
-            applyAttributes(st, attributesByTemplate.get("*"));
-            applyAttributes(st, attributesByTemplate.get(name));
+    /**
+     * Digest of the configuration shared by all the templates of this group.
+     * <p>
+     * The content of source files isn't included, because RenderState checks the files each Template used.
+     */
+    // Used by RenderMojo for incremental rendering
+    String fingerprint() {
+        return new Fingerprint()
+                .add(type.stGroupClass.getName())
+                .add(encoding)
+                .add(attributeRenderers)
+                .add(modelAdaptors)
+                .add(resolvedSource())
+                .add(ctx.jsonTree()) // Changes how attributes are parsed, so rendered
+                .toHex();
+    }
+
+    // Used by Template, to record the dependencies of its renders
+    Dependencies newDependencies() {
+        return new Dependencies(type.stGroupClass, url);
+    }
+
+    // Used by Template.fingerprint(), only the entries applied to the named template matter.
+    void addAttributes(final Fingerprint fp, final String name) throws IOException {
+        final Map<String, Map<String, ?>> attributesByTemplate = this.attributesByTemplate;
+        if (null == attributesByTemplate) {
+            fp.add((String) null);
+            return;
         }
-        applyAttributes(st, attributes);
-        return st;
+        fp.add(writer.writeValueAsBytes(attributesByTemplate.get("*")));
+        fp.add(writer.writeValueAsBytes(attributesByTemplate.get(name)));
     }
 
-    @SuppressWarnings({"UseSpecificCatch", "ThrowableResultIgnored"})
+    /**
+     * Returns the "*" map layered under the map for the named template, for Template.init() to layer its own
+     * attributes on.
+     */
+    AttributeScope attributeScope(final String name) {
+        final Map<String, Map<String, ?>> attributesByTemplate = this.attributesByTemplate;
+        if (null == attributesByTemplate)
+            return AttributeScope.EMPTY;
+        return AttributeScope.of(attributesByTemplate.get("*")).with(attributesByTemplate.get(name));
+    }
+
+    /**
+     * Returns an unused Instance, which must be released after use.
+     */
+    // Used by Template.call(), so don't need to expose STGroup.
+    CompiledGroup.Instance acquire() {
+        return compiled.acquire();
+    }
+
+    /**
+     * Returns instance to the pool, unless already full, e.g. after a timed out render left a thread still using one.
+     */
+    void release(final CompiledGroup.Instance instance) {
+        compiled.release(instance);
+    }
+
+    /**
+     * Loads the STGroup, run by the RenderScheduler.
+     */
     @Override
     public Void call() {
-        final RenderMojo.Context ctx = this.ctx;
-        final Log log = ctx.log();
+        failed = false;
+        if (!stale) // A watch keeps unchanged groups
+            return null;
+        final FlightEvents.Event event = FlightEvents.GROUP_LOAD.begin();
+        this.stGroup = ctx.shareGroups() && SharedGroups.isShareable(type.stGroupClass)
+                       ? sharedInstance()
+                       : load(this);
+        // At most the plugin parallelism of Instances are kept, because no more can be in use at once
+        this.compiled = new CompiledGroup(id, stGroup, encoding, null, this::registerModelAdaptors,
+                                          ctx.parallelism(), renderTemplatesConcurrently, metrics);
+        stale = false;
+        if (null != event)
+            event.commit(id, type.name(), resolvedSource());
+        return null;
+    }
 
-        // Create and load STGroup
-        final STGroup stGroup;
+    /**
+     * Returns the file system paths of the loaded .stg files and directories of this group, and the groups it
+     * imports; a string group has none, because its source is in the POM.
+     */
+    // Used by WatchMojo
+    Set<Path> sourcePaths() {
+        final Set<Path> paths = new HashSet<>();
+        if (null == stGroup) // Failed to load
+            addSourcePath(url, paths);
+        else
+            addSourcePaths(stGroup, paths, Collections.newSetFromMap(new IdentityHashMap<>()));
+        return paths;
+    }
+
+    private static void addSourcePaths(final STGroup stGroup, final Set<Path> paths, final Set<STGroup> visited) {
+        if (!visited.add(stGroup))
+            return;
+        // STGroupString extends STGroupFile, so must be tested first
+        if (!(stGroup instanceof STGroupString)) {
+            if (stGroup instanceof STGroupFile)
+                addSourcePath(((STGroupFile) stGroup).url, paths);
+            else if (stGroup instanceof STGroupDir)
+                addSourcePath(((STGroupDir) stGroup).root, paths);
+        }
+        for (STGroup imported : stGroup.getImportedGroups())
+            addSourcePaths(imported, paths, visited);
+    }
+
+    private static void addSourcePath(final URL url, final Set<Path> paths) {
+        final Path path = sourcePath(url);
+        if (null != path)
+            paths.add(path);
+    }
+
+    // Null if not a file URL
+    private static Path sourcePath(final URL url) {
+        if (null == url || !"file".equals(url.getProtocol()))
+            return null;
         try {
-            stGroup = type.getSTGroup(id, source, url, encoding);
-            stGroup.setListener(this); // Detect bug of StringTemplate not always throwing an exception for a load error
-            stGroup.load();
-        } catch (Exception e) {
-            throw new IllegalStateException(format("failed to create a %s (%s)",
-                                                   type.stGroupClass.getSimpleName(), e.getMessage()), e);
+            return Paths.get(url.toURI()).toAbsolutePath().normalize();
+        } catch (URISyntaxException e) {
+            return null;
         }
-        // Handle bug of StringTemplate not always throwing an exception for a load error
-        if (failed) {
-            throw new IllegalStateException("failed to fully create a " + type.stGroupClass.getSimpleName());
+    }
+
+    /**
+     * Returns true if any of the changed paths is a source used by a Template of this group, after unloading the
+     * changed template files of a directory group, or marking the group for a reload by the next call().
+     * <p>
+     * Only the Templates which used a changed source, or whose sources aren't known, are rendered next.
+     */
+    // Used by WatchMojo
+    boolean invalidate(final Set<Path> changed) {
+        final Set<Path> sourcePaths = sourcePaths();
+        boolean affected = false;
+        for (Path path : changed) {
+            for (Path sourcePath : sourcePaths) {
+                if (path.startsWith(sourcePath)) { // The file, or in the directory
+                    affected = true;
+                    if (!unload(sourcePath, path))
+                        stale = true;
+                    break;
+                }
+            }
         }
+        if (!affected)
+            return false;
+        final List<Template> pending = new ArrayList<>();
+        for (Template template : templates)
+            if (template.dependsOn(changed))
+                pending.add(template);
+        this.pending = pending;
+        return !pending.isEmpty();
+    }
 
-        log.info(format("Group id \"%s\" created a %s \"%s\"",
-                        id, type.stGroupClass.getSimpleName(), type.getSource(stGroup)));
-        //
-        ctx.registerRenderers(stGroup, attributeRenderers);
-        ctx.registerModelAdaptors(stGroup, modelAdaptors);
-        this.stGroup = stGroup;
+    /**
+     * Marks the group for a reload, and all its Templates for rendering, e.g. when watch events were lost.
+     */
+    // Used by WatchMojo
+    void invalidateAll() {
+        stale = true;
+        pending = null;
+    }
 
-        final ExecutorService es = renderTemplatesConcurrently
-                                   ? newWorkStealingPool()
-                                   : newSingleThreadExecutor();
-        final int templateCount = templates.size();
-        final List<Future<Void>> futures = new ArrayList<>(templateCount);
+    // Only a template file of this group's own directory can be recompiled alone.
+    private boolean unload(final Path sourcePath, final Path path) {
+        if (!(stGroup instanceof ConcurrentGroupDir) || !path.getFileName().toString().endsWith(".st"))
+            return false;
+        final Path root = sourcePath(((ConcurrentGroupDir) stGroup).root);
+        if (!sourcePath.equals(root))
+            return false;
+        final String relative = root.relativize(path).toString().replace(File.separatorChar, '/');
+        ((ConcurrentGroupDir) stGroup).unload("/" + relative.substring(0, relative.length() - ".st".length()));
+        return true;
+    }
+
+
+    /**
+     * Submits all the templates to scheduler, for concurrent rendering if renderTemplatesConcurrently, else one at a
+     * time, in order.
+     */
+    // Used by RenderMojo, after call() completed
+    List<Future<Void>> submitTemplates(final RenderScheduler scheduler) {
+        final Executor executor = renderTemplatesConcurrently
+                                  ? scheduler
+                                  : scheduler.serial();
+        final List<Template> rendering = null == pending ? templates : pending;
+        pending = null;
+        this.rendering = rendering;
+        final List<Future<Void>> futures = new ArrayList<>(rendering.size());
+        for (Template template : rendering)
+            futures.add(template.submit(executor));
+        return futures;
+    }
+
+    /**
+     * Waits for the futures from submitTemplates, logging failures, until the timeout from startNanos.
+     */
+    @SuppressWarnings({"UseSpecificCatch", "ThrowableResultIgnored"})
+    void awaitTemplates(final List<Future<Void>> futures, final long startNanos) {
+        final Log log = ctx.log();
+        final List<Template> rendering = this.rendering;
+        final int templateCount = rendering.size();
         int i = 0;
         try {
-            templates.stream()
-                     .map(es::submit)
-                     .forEach(futures::add);
             while (i < templateCount) {
-                final Template template = templates.get(i);
+                final Template template = rendering.get(i);
                 final Future<Void> future = futures.get(i);
                 try {
                     try {
-                        future.get(template.timeoutDuration, template.timeoutUnit);
+                        future.get(Math.min(template.timeoutUnit.toNanos(template.timeoutDuration),
+                                            remainingNanos(startNanos)),
+                                   NANOSECONDS);
                     } catch (ExecutionException ex) {
                         throw selectThrow(ex);
                     }
@@ -301,20 +488,152 @@ public final class Group implements STErrorConsumer, Callable<Void> {
                 i++;
             }
         } finally {
-            // Shutdown ExecutorService and cancel all added futures
-            es.shutdown();
+            // Cancel all remaining futures
             final int n = futures.size();
             while (i < n) {
                 futures.get(i++).cancel(true);
             }
+            compiled.clear();
         }
         if (failed) {
             throw new STException("Some Templates failed to render using " + this, null);
         }
 
         log.info(format("Render completed for Group id \"%s\"", id));
+        logCompiled(log);
+    }
 
-        return null;
+    /**
+     * Logs how many templates of a lazily compiled .stg file weren't needed, so weren't compiled.
+     */
+    private void logCompiled(final Log log) {
+        LazyGroupFile lazy = null;
+        // A shared, or concurrent, group is imported by this one
+        if (stGroup instanceof LazyGroupFile)
+            lazy = (LazyGroupFile) stGroup;
+        else if (null != stGroup)
+            for (STGroup imported : stGroup.getImportedGroups())
+                if (imported instanceof LazyGroupFile)
+                    lazy = (LazyGroupFile) imported;
+        if (null == lazy)
+            return;
+        final int parsed = lazy.parsedCount();
+        final int uncompiled = lazy.uncompiledCount();
+        log.info(format("Group id \"%s\" compiled %d of %d templates, skipped %d unused",
+                        id, parsed - uncompiled, parsed, uncompiled));
+    }
+
+    /**
+     * Returns the nanoseconds left of the timeout from startNanos.
+     */
+    long remainingNanos(final long startNanos) {
+        return Math.max(0, timeoutUnit.toNanos(timeoutDuration) - (System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Create and load an STGroup, reporting load errors to listener, then register the renderers and adaptors.
+     */
+    @SuppressWarnings("UseSpecificCatch")
+    private STGroup load(final STErrorListener listener) {
+        final Log log = ctx.log();
+        final STGroup stGroup;
+        try {
+            final long start = System.nanoTime();
+            stGroup = newSTGroup();
+            final long created = System.nanoTime();
+            metrics.add(Metrics.Stage.CREATE, created - start);
+            stGroup.setListener(listener); // Detect bug of StringTemplate not always throwing an exception for a load error
+            stGroup.load();
+            metrics.add(Metrics.Stage.LOAD, System.nanoTime() - created);
+        } catch (Exception e) {
+            throw new IllegalStateException(format("failed to create a %s (%s)",
+                                                   type.stGroupClass.getSimpleName(), e.getMessage()), e);
+        }
+        // Handle bug of StringTemplate not always throwing an exception for a load error
+        if (failed) {
+            throw new IllegalStateException("failed to fully create a " + type.stGroupClass.getSimpleName());
+        }
+
+        log.info(format("Group id \"%s\" created a %s \"%s\"",
+                        id, type.stGroupClass.getSimpleName(), type.getSource(stGroup)));
+        //
+        final long start = System.nanoTime();
+        ctx.registerRenderers(stGroup, attributeRenderers);
+        registerModelAdaptors(stGroup);
+        metrics.add(Metrics.Stage.REGISTER, System.nanoTime() - start);
+        return stGroup;
+    }
+
+    /**
+     * Get or load the shared STGroup for this source, and return a new STGroup importing it, with this as listener.
+     * <p>
+     * The model adaptors are also registered on the new STGroup, because attribute properties are resolved via the
+     * group which created an ST.
+     */
+    private STGroup sharedInstance() {
+        final Class<? extends STGroup> stGroupClass = type.stGroupClass;
+        final SharedGroups.Key key = new SharedGroups.Key(
+                stGroupClass,
+                resolvedSource(),
+                encoding, attributeRenderers, modelAdaptors, ctx.jsonTree());
+        final SharedGroups.Entry entry = SharedGroups.entry(key);
+        STGroup shared;
+        synchronized (entry) {
+            shared = entry.get();
+            if (null == shared) {
+                final ErrorCounter counter = new ErrorCounter(this);
+                shared = load(counter);
+                if (0 == counter.count() && !entry.set(shared))
+                    ctx.log().info(format("Group id \"%s\" imports a group which can't be shared", id));
+                // Outlives this execution, so mustn't keep this Group, and its Context, or log to it
+                SharedGroups.detachListener(shared);
+            } else
+                ctx.log().info(format("Group id \"%s\" reused a shared %s \"%s\"",
+                                      id, stGroupClass.getSimpleName(), type.getSource(shared)));
+        }
+        final STGroup stGroup = new STGroup(shared.delimiterStartChar, shared.delimiterStopChar);
+        stGroup.importTemplates(shared);
+        stGroup.setListener(this);
+        registerModelAdaptors(stGroup);
+        return stGroup;
+    }
+
+    /**
+     * Returns the text of a string group, else the resolved URL of the file or directory.
+     */
+    private String resolvedSource() {
+        // STGroupString extends STGroupFile, so must be tested first
+        return STGroupString.class.isAssignableFrom(type.stGroupClass) ? source : url.toString();
+    }
+
+    private void registerModelAdaptors(final STGroup stGroup) {
+        ctx.registerModelAdaptors(stGroup, modelAdaptors);
+        if (ctx.jsonTree())
+            stGroup.registerModelAdaptor(JsonNode.class, JsonNodeAdaptor.INSTANCE);
+    }
+
+    // Only groups loaded from a single source can be cached, STGroupDir compiles each template on first use anyway.
+    private STGroup newSTGroup() {
+        final Class<? extends STGroup> stGroupClass = type.stGroupClass;
+        // A watch needs to unload changed templates
+        if ((renderTemplatesConcurrently || ctx.watch()) && STGroupDir.class.isAssignableFrom(stGroupClass))
+            return new ConcurrentGroupDir(url, encoding);
+        final CompiledCache cache = ctx.compiledCache();
+        // STGroupString extends STGroupFile, so must be tested first
+        if (STGroupString.class.isAssignableFrom(stGroupClass))
+            return null != cache
+                   ? new CompiledCache.GroupString(id, source, cache)
+                   : type.getSTGroup(id, source, url, encoding);
+        // A cached file is stored with all its templates compiled, so isn't lazy, nor is a shared one, because a
+        // shared group must never be modified after loading
+        if (STGroupFile.class.isAssignableFrom(stGroupClass)) {
+            if (null != cache)
+                return new CompiledCache.GroupFile(url, encoding, cache);
+            return ctx.shareGroups()
+                   ? type.getSTGroup(id, source, url, encoding)
+                   : new LazyGroupFile(url, encoding);
+        }
+        return type.getSTGroup(id, source, url, encoding);
     }
 
     private boolean failed() {
@@ -328,5 +647,151 @@ public final class Group implements STErrorConsumer, Callable<Void> {
         ctx.log().error(s, msg.cause);
     }
 
+    /**
+     * An STGroupDir which can be used by concurrent threads, because templates are loaded lazily, and can unload a
+     * changed template.
+     */
+    // Also used by Engine
+    static final class ConcurrentGroupDir extends STGroupDir {
+        ConcurrentGroupDir(final URL root, final String encoding) {
+            super(root, encoding, '<', '>');
+        }
+
+        @Override
+        protected synchronized CompiledST load(final String name) {
+            // Another thread may have loaded it, while this one was waiting, and a reload would be a redefinition error.
+            final CompiledST code = rawGetTemplate(name);
+            if (null != code)
+                return NOT_FOUND_ST == code ? null : code;
+            return super.load(name);
+        }
+
+        /**
+         * Used by a watch, so that the changed template is recompiled when next used.
+         * <p>
+         * Also removes the regions, and sub-templates, its file defined, because a recompile would report them as
+         * already defined, and keep the old ones.
+         */
+        private synchronized void unload(final String name) {
+            final CompiledST code = templates.remove(name);
+            if (null != code && NOT_FOUND_ST != code)
+                unloadImplicit(code);
+            // Regions are named by the template, so also catches any not recorded as implicitly defined
+            final String regionPrefix = getMangledRegionName(name, "");
+            synchronized (templates) { // Collections.synchronizedMap
+                templates.keySet().removeIf(k -> k.startsWith(regionPrefix));
+            }
+        }
+
+        // The templates CompiledST.defineImplicitlyDefinedTemplates() and defineArgDefaultValueTemplates() defined
+        private void unloadImplicit(final CompiledST code) {
+            if (null != code.implicitlyDefinedTemplates)
+                for (CompiledST sub : code.implicitlyDefinedTemplates) {
+                    templates.remove(sub.name, sub);
+                    unloadImplicit(sub);
+                }
+            if (null != code.formalArguments)
+                for (FormalArgument fa : code.formalArguments.values())
+                    if (null != fa.compiledDefaultValue)
+                        unloadImplicit(fa.compiledDefaultValue);
+        }
+    }
+
+    /**
+     * An STGroupFile which parses the whole file, but only compiles a template when it, or one of its regions, is
+     * first looked up, so only the templates reachable from the rendered ones are compiled.
+     * <p>
+     * Lookups may be by concurrent threads, so are locked, like ConcurrentGroupDir.
+     */
+    static final class LazyGroupFile extends STGroupFile {
+        private static final String REGION_PREFIX = "/region__";
+        // Parsed, but not yet compiled, templates
+        private final Map<String, Definition> deferred = new HashMap<>();
+        private boolean loading;
+        private int parsed;
+
+        LazyGroupFile(final URL url, final String encoding) {
+            super(url, encoding, '<', '>');
+        }
+
+        @Override
+        public synchronized void load() {
+            loading = true;
+            try {
+                super.load();
+            } finally {
+                loading = false;
+            }
+        }
+
+        @Override
+        public synchronized CompiledST defineTemplate(final String fullyQualifiedTemplateName, final Token nameT,
+                                                      final List<FormalArgument> args, final String template,
+                                                      final Token templateToken) {
+            if (!loading)
+                return super.defineTemplate(fullyQualifiedTemplateName, nameT, args, template, templateToken);
+            // Both definitions must be compiled, so that STGroup reports the redefinition
+            compileDeferred(fullyQualifiedTemplateName);
+            if (null != rawGetTemplate(fullyQualifiedTemplateName))
+                return super.defineTemplate(fullyQualifiedTemplateName, nameT, args, template, templateToken);
+            deferred.put(fullyQualifiedTemplateName, new Definition(nameT, args, template, templateToken));
+            parsed++;
+            return null;
+        }
+
+        // The target must be compiled, because STGroup checks that it's defined
+        @Override
+        public synchronized CompiledST defineTemplateAlias(final Token aliasT, final Token targetT) {
+            compileDeferred("/" + targetT.getText());
+            return super.defineTemplateAlias(aliasT, targetT);
+        }
+
+        @Override
+        protected synchronized CompiledST load(final String name) {
+            final CompiledST code = super.load(name);
+            return null != code ? code : compileDeferred(name);
+        }
+
+        private CompiledST compileDeferred(final String name) {
+            // A region, named "/region__" + enclosing template name + "__" + region name, is defined by compiling its
+            // enclosing template
+            final String templateName = name.startsWith(REGION_PREFIX)
+                                        ? name.substring(REGION_PREFIX.length(), name.lastIndexOf("__"))
+                                        : name;
+            final Definition d = deferred.remove(templateName);
+            if (null != d) {
+                try {
+                    super.defineTemplate(templateName, d.nameT, d.args, d.template, d.templateToken);
+                } catch (STException e) {
+                    return null; // Already reported to the listener
+                }
+            }
+            return rawGetTemplate(name);
+        }
+
+        synchronized int parsedCount() {
+            return parsed;
+        }
+
+        synchronized int uncompiledCount() {
+            return deferred.size();
+        }
+
+        private static final class Definition {
+            final Token nameT;
+            final List<FormalArgument> args;
+            final String template;
+            final Token templateToken;
+
+            private Definition(final Token nameT, final List<FormalArgument> args, final String template,
+                               final Token templateToken) {
+                this.nameT = nameT;
+                this.args = args;
+                this.template = template;
+                this.templateToken = templateToken;
+            }
+        }
+    }
+
     static final String DEFAULT_DIR = ".";
 }
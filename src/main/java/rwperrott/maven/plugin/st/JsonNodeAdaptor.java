@@ -0,0 +1,189 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.POJONode;
+import org.stringtemplate.v4.Interpreter;
+import org.stringtemplate.v4.ModelAdaptor;
+import org.stringtemplate.v4.ST;
+
+import java.util.*;
+
+/**
+ * Resolves properties directly on a Jackson tree, so that large JSON attributes don't have to be converted to Maps,
+ * Lists and boxed values, and only the accessed nodes are ever examined.
+ * <p>
+ * Properties of an object node behave like those of a Map, so a missing property is null, and "keys" and "values"
+ * are supported. Value nodes are unwrapped, array nodes are viewed as Lists, and nested object nodes as read-only Maps,
+ * of unwrapped values, so that ST renders, and iterates, them exactly like the Maps and Lists of Map mode.
+ */
+final class JsonNodeAdaptor implements ModelAdaptor<JsonNode> {
+    static final JsonNodeAdaptor INSTANCE = new JsonNodeAdaptor();
+
+    private JsonNodeAdaptor() {
+    }
+
+    @Override
+    public Object getProperty(final Interpreter interp, final ST self, final JsonNode model,
+                              final Object property, final String propertyName) {
+        final JsonNode value = model.get(propertyName);
+        if (null != value)
+            return unwrap(value);
+        if (model.isObject()) {
+            if ("keys".equals(propertyName)) {
+                final List<String> keys = new ArrayList<>(model.size());
+                model.fieldNames().forEachRemaining(keys::add);
+                return keys;
+            }
+            if ("values".equals(propertyName))
+                return new ListView(model);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the top-level fields of an object node as an attribute Map, with unwrapped values.
+     *
+     * @param checkDepth 1 if the values must also be object nodes, to be converted to attribute Maps.
+     */
+    static <V> Map<String, V> attributes(final JsonNode node, final String name, final int checkDepth) {
+        if (!node.isObject())
+            throw new IllegalArgumentException(name + " is not a JSON Map");
+        final Map<String, Object> map = new LinkedHashMap<>(node.size() << 1);
+        node.fields().forEachRemaining(e -> map.put(e.getKey(),
+                                                    checkDepth > 0
+                                                    ? attributes(e.getValue(), name + "." + e.getKey(),
+                                                                 checkDepth - 1)
+                                                    : unwrap(e.getValue())));
+        @SuppressWarnings("unchecked") final Map<String, V> result = (Map<String, V>) map;
+        return result;
+    }
+
+    /**
+     * Returns the Java value of a value node, a List view of an array node, or a Map view of an object node.
+     */
+    static Object unwrap(final JsonNode node) {
+        switch (node.getNodeType()) {
+            case STRING:
+                return node.textValue();
+            case NUMBER:
+                return node.numberValue();
+            case BOOLEAN:
+                return node.booleanValue();
+            case ARRAY:
+                return new ListView(node);
+            case OBJECT:
+                return new MapView(node);
+            case POJO:
+                return ((POJONode) node).getPojo();
+            case BINARY:
+                return node.asText();
+            default: // NULL and MISSING
+                return null;
+        }
+    }
+
+    /**
+     * An immutable view of the fields of an object, with unwrapped values, so that ST iterates its keys, like a Map,
+     * rather than its value nodes.
+     */
+    private static final class MapView extends AbstractMap<String, Object> {
+        private final JsonNode node;
+
+        private MapView(final JsonNode node) {
+            this.node = node;
+        }
+
+        @Override
+        public Object get(final Object key) {
+            final JsonNode value = key instanceof String ? node.get((String) key) : null;
+            return null == value ? null : unwrap(value);
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return key instanceof String && node.has((String) key);
+        }
+
+        @Override
+        public int size() {
+            return node.size();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public int size() {
+                    return node.size();
+                }
+
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    final Iterator<Map.Entry<String, JsonNode>> it = node.fields();
+                    return new Iterator<Entry<String, Object>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            final Map.Entry<String, JsonNode> e = it.next();
+                            return new SimpleImmutableEntry<>(e.getKey(), unwrap(e.getValue()));
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * An immutable view of the unwrapped elements of an array, or the values of an object.
+     */
+    private static final class ListView extends AbstractList<Object> {
+        private final JsonNode node;
+
+        private ListView(final JsonNode node) {
+            this.node = node;
+        }
+
+        @Override
+        public Object get(final int index) {
+            if (index < 0 || index >= node.size())
+                throw new IndexOutOfBoundsException("index: " + index);
+            return unwrap(node.isArray() ? node.get(index) : nth(index));
+        }
+
+        // An object node only supports iteration of values
+        private JsonNode nth(final int index) {
+            final Iterator<JsonNode> it = node.elements();
+            for (int i = 0; i < index; i++)
+                it.next();
+            return it.next();
+        }
+
+        @Override
+        public int size() {
+            return node.size();
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            final Iterator<JsonNode> it = node.elements();
+            return new Iterator<Object>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Object next() {
+                    return unwrap(it.next());
+                }
+            };
+        }
+    }
+}
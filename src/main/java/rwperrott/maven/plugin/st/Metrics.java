@@ -0,0 +1,189 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.lang.String.format;
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.Files.newOutputStream;
+import static java.nio.file.StandardOpenOption.*;
+import static rwperrott.maven.plugin.st.Utils.move;
+import static rwperrott.maven.plugin.st.Utils.writer;
+
+/**
+ * The time spent in each stage by each Group and Template, and the size of the rendered output, for a JSON report
+ * and a log of the slowest.
+ * <p>
+ * Always collected, because it only costs a few System.nanoTime() calls per render. Records are updated by concurrent
+ * renders, so use atomics.
+ */
+final class Metrics {
+    private final List<Record> groups = new ArrayList<>();
+    private final List<Record> templates = new ArrayList<>();
+
+    /**
+     * The stages timed; QUEUE_WAIT is the time between submission to the RenderScheduler and starting.
+     */
+    enum Stage {
+        QUEUE_WAIT("queueWait"),
+        JSON_PARSE("jsonParse"),
+        CREATE("create"),
+        LOAD("load"),
+        REGISTER("register"),
+        GET_ST("getST"),
+        RENDER("render"),
+        FLUSH_MOVE("flushAndMove");
+
+        private final String label;
+
+        Stage(final String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    synchronized Record group(final String id) {
+        final Record record = new Record(id);
+        groups.add(record);
+        return record;
+    }
+
+    synchronized Record template(final String id) {
+        final Record record = new Record(id);
+        templates.add(record);
+        return record;
+    }
+
+    /**
+     * Saves the report, with Group records in creation order, and Template records in id order, because Templates are
+     * initialised concurrently.
+     */
+    synchronized void save(final Path path) throws IOException {
+        final List<Record> templates = new ArrayList<>(this.templates);
+        templates.sort(Comparator.comparing(record -> record.id));
+        final Map<String, Object> report = new LinkedHashMap<>();
+        report.put("groups", toMaps(groups));
+        report.put("templates", toMaps(templates));
+        createDirectories(path.getParent());
+        final Path pathTmp = path.resolveSibling(path.getFileName().toString() + ".tmp");
+        try (OutputStream os = newOutputStream(pathTmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            writer.withDefaultPrettyPrinter().writeValue(os, report);
+        }
+        move(pathTmp, path);
+    }
+
+    private static List<Map<String, Object>> toMaps(final List<Record> records) {
+        final List<Map<String, Object>> list = new ArrayList<>(records.size());
+        records.forEach(record -> list.add(record.toMap()));
+        return list;
+    }
+
+    /**
+     * Logs the count slowest Groups and Templates, by total time, excluding queue wait.
+     */
+    synchronized void logSlowest(final Log log, final int count) {
+        logSlowest(log, count, "Groups", groups);
+        logSlowest(log, count, "Templates", templates);
+    }
+
+    private static void logSlowest(final Log log, final int count, final String kind, final List<Record> records) {
+        if (records.isEmpty())
+            return;
+        final List<Record> sorted = new ArrayList<>(records);
+        sorted.sort(Comparator.comparingLong(Record::totalNanos).reversed());
+        final int n = Math.min(count, sorted.size());
+        log.info(format("Slowest %d of %d %s:", n, sorted.size(), kind));
+        for (int i = 0; i < n; i++)
+            log.info("  " + sorted.get(i));
+    }
+
+    static final class Record {
+        private static final Stage[] STAGES = Stage.values();
+
+        private final String id;
+        private final AtomicLongArray nanos = new AtomicLongArray(STAGES.length);
+        private final AtomicLong renders = new AtomicLong();
+        private final AtomicLong chars = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong stCacheHits = new AtomicLong();
+        private final AtomicLong stCacheMisses = new AtomicLong();
+
+        private Record(final String id) {
+            this.id = id;
+        }
+
+        void add(final Stage stage, final long nanos) {
+            this.nanos.addAndGet(stage.ordinal(), nanos);
+        }
+
+        /**
+         * Adds the time to render and encode chars, to bytes.
+         */
+        void rendered(final long nanos, final long chars, final long bytes) {
+            add(Stage.RENDER, nanos);
+            renders.incrementAndGet();
+            this.chars.addAndGet(chars);
+            this.bytes.addAndGet(bytes);
+        }
+
+        /**
+         * Counts an ST got from the cache of a Group's Instance, or created, if not hit.
+         */
+        void getST(final boolean hit) {
+            (hit ? stCacheHits : stCacheMisses).incrementAndGet();
+        }
+
+        long totalNanos() {
+            long total = 0;
+            for (int i = 1; i < STAGES.length; i++) // Exclude QUEUE_WAIT
+                total += nanos.get(i);
+            return total;
+        }
+
+        private Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("id", id);
+            map.put("totalNanos", totalNanos());
+            for (Stage stage : STAGES)
+                map.put(stage + "Nanos", nanos.get(stage.ordinal()));
+            map.put("renders", renders.get());
+            map.put("chars", chars.get());
+            map.put("bytes", bytes.get());
+            map.put("stCacheHits", stCacheHits.get());
+            map.put("stCacheMisses", stCacheMisses.get());
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            final StringJoiner sj = new StringJoiner(", ", format("id \"%s\" %s (", id, millis(totalNanos())), ")");
+            for (Stage stage : STAGES) {
+                final long n = nanos.get(stage.ordinal());
+                if (0 != n)
+                    sj.add(stage + " " + millis(n));
+            }
+            if (0 != renders.get())
+                sj.add(format("%d renders, %d chars, %d bytes", renders.get(), chars.get(), bytes.get()));
+            if (0 != stCacheHits.get() || 0 != stCacheMisses.get())
+                sj.add(format("ST cache %d hits, %d misses", stCacheHits.get(), stCacheMisses.get()));
+            return sj.toString();
+        }
+
+        private static String millis(final long nanos) {
+            return format("%.3f ms", nanos / 1e6);
+        }
+    }
+}
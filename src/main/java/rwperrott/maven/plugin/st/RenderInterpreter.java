@@ -0,0 +1,79 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.stringtemplate.v4.InstanceScope;
+import org.stringtemplate.v4.Interpreter;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STErrorListener;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STWriter;
+import org.stringtemplate.v4.misc.ErrorManager;
+
+import java.util.Locale;
+
+/**
+ * An Interpreter which resolves an attribute not declared by any enclosing template from an AttributeScope, then
+ * dictionaries, like an attribute added to the outermost template, and records the templates and dictionaries used in
+ * Dependencies.
+ */
+final class RenderInterpreter extends Interpreter {
+    private final AttributeScope attributes;
+    private final Dependencies dependencies;
+
+    private RenderInterpreter(final STGroup group, final ErrorManager errMgr,
+                              final AttributeScope attributes, final Dependencies dependencies) {
+        super(group, Locale.getDefault(), errMgr, false);
+        this.attributes = attributes;
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * Renders st, already bound to attributes, to out, like ST.write(), via a RenderInterpreter if attributes isn't
+     * empty, or dependencies isn't null.
+     */
+    static int write(final ST st, final STWriter out, final STErrorListener listener,
+                     final AttributeScope attributes, final Dependencies dependencies) {
+        if (attributes.isEmpty() && null == dependencies)
+            return st.write(out, listener);
+        final Interpreter interpreter = new RenderInterpreter(st.groupThatCreatedThisInstance,
+                                                              new ErrorManager(listener), attributes, dependencies);
+        return interpreter.exec(out, new InstanceScope(null, st));
+    }
+
+    @Override
+    protected int _exec(final STWriter out, final InstanceScope scope) {
+        if (null != dependencies)
+            dependencies.addTemplate(scope.st.impl);
+        return super._exec(out, scope);
+    }
+
+    @Override
+    public Object getAttribute(final InstanceScope scope, final String name) {
+        if (!attributes.isEmpty() && !isDeclared(scope, name)) {
+            final Object value = attributes.get(name);
+            if (null != value)
+                return value;
+        }
+        return super.getAttribute(scope, name);
+    }
+
+    // Called for each import searched, so records the group which defines the dictionary
+    @Override
+    public Object getDictionary(final STGroup g, final String name) {
+        if (null != dependencies && g.isDictionary(name))
+            dependencies.addDictionaryGroup(g);
+        return super.getDictionary(g, name);
+    }
+
+    // The same search as Interpreter.getAttribute(), a declared argument hides an AttributeScope one, even if unset
+    private static boolean isDeclared(InstanceScope scope, final String name) {
+        for (; null != scope; scope = scope.parent) {
+            final ST st = scope.st;
+            if (null != st.impl.formalArguments && st.impl.formalArguments.containsKey(name))
+                return true;
+        }
+        return false;
+    }
+}
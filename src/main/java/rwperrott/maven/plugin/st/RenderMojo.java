@@ -12,14 +12,17 @@
 
 package rwperrott.maven.plugin.st;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
 import org.stringtemplate.v4.compiler.STException;
 import rwperrott.stringtemplate.v4.STContext;
 import rwperrott.stringtemplate.v4.STUtils;
@@ -28,21 +31,24 @@ import rwperrott.stringtemplate.v4.ToStringBuilder;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.time.DateTimeException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Stream;
+import java.util.concurrent.atomic.LongAdder;
 
 import static java.lang.String.format;
 import static java.nio.charset.Charset.defaultCharset;
 import static java.nio.file.Files.exists;
 import static java.nio.file.Files.isDirectory;
 import static java.nio.file.Paths.get;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.apache.maven.plugins.annotations.LifecyclePhase.GENERATE_SOURCES;
+import static rwperrott.maven.plugin.st.Utils.reader;
 import static rwperrott.maven.plugin.st.Utils.selectThrow;
 
 /**
@@ -57,7 +63,7 @@ import static rwperrott.maven.plugin.st.Utils.selectThrow;
  */
 @SuppressWarnings("ALL")
 @Mojo(name = "render", defaultPhase = GENERATE_SOURCES, threadSafe = true)
-public final class RenderMojo extends AbstractMojo {
+public class RenderMojo extends AbstractMojo {
     @Parameter(property = "project.build.sourceEncoding")
     public String sourceEncoding = defaultCharset().name();
     /**
@@ -77,13 +83,203 @@ public final class RenderMojo extends AbstractMojo {
     public boolean failFast = false;
 
     /**
-     * If true, render groups concurrently, using all the CPU cores.
+     * If true, render groups concurrently, limited by parallelism.
      * <p>
      * Default is false
      */
     @Parameter(property = "string-template.renderGroupsConcurrently")
     public boolean renderGroupsConcurrently;
 
+    /**
+     * The maximum number of threads used for all concurrent Group loads and Template renders.
+     * <p>
+     * Default is 0, for the number of available processors.
+     */
+    @Parameter(property = "string-template.parallelism")
+    public int parallelism;
+
+    /**
+     * If true, all Templates only replace their target file if its content differs from the rendered content, so that
+     * an unchanged target file keeps its timestamp.
+     * <p>
+     * Default is false
+     */
+    @Parameter(property = "string-template.writeIfChanged")
+    public boolean writeIfChanged;
+
+    /**
+     * If true, skip rendering of Templates whose inputs are unchanged since they were last rendered, and whose target
+     * file still exists; Groups with no Templates left to render are not loaded.
+     * <p>
+     * The inputs are the Group source content, encoding, AttributeRenderers and ModelAdaptors, the matching
+     * jsonAttributesByTemplate entries, and the Template properties, including jsonAttributes.
+     * <p>
+     * Default is false
+     */
+    @Parameter(property = "string-template.incremental")
+    public boolean incremental;
+
+    /**
+     * The file used to save the input fingerprints of rendered Templates, for incremental rendering.
+     * <p>
+     * Default is "${project.build.directory}/string-template/${mojoExecution.executionId}-state.json"
+     */
+    @Parameter(defaultValue = "${project.build.directory}/string-template/${mojoExecution.executionId}-state.json")
+    public String renderStateFile;
+
+    /**
+     * If true, cache the compiled templates of string and .stg file Groups in compiledCacheDir, so that an unchanged
+     * source isn't parsed and compiled again by later builds.
+     * <p>
+     * Default is false
+     */
+    @Parameter(property = "string-template.compiledCache")
+    public boolean compiledCache;
+
+    /**
+     * The directory for compiled template cache entries, which are keyed by a digest of the source content, encoding,
+     * and StringTemplate version.
+     * <p>
+     * Default is "${project.build.directory}/string-template/compiled"
+     */
+    @Parameter(property = "string-template.compiledCacheDir",
+               defaultValue = "${project.build.directory}/string-template/compiled")
+    public String compiledCacheDir;
+
+    /**
+     * If true, share loaded string and .stg file Groups, with the same source, encoding, attributeRenderers and
+     * modelAdaptors, between all executions in the same JVM, so that reactor modules using the same source only
+     * compile it once.
+     * <p>
+     * Shared Groups are reloaded when the last-modified time of their source, or of an imported .stg file, changes, so
+     * can be used with long-lived JVMs, like the Maven daemon.
+     * <p>
+     * Default is false
+     */
+    @Parameter(property = "string-template.shareGroups")
+    public boolean shareGroups;
+
+    /**
+     * If true, keep JSON attributes as Jackson trees, resolved by a ModelAdaptor, rather than converting them to Maps,
+     * Lists and boxed values, so that large models use much less heap.
+     * <p>
+     * Only the top-level of JSON attribute Maps is checked; nested values are only examined if accessed.
+     * <p>
+     * Default is false
+     */
+    @Parameter(property = "string-template.jsonTree")
+    public boolean jsonTree;
+
+    /**
+     * If true, render all targets to stagingDir, then only move them to their targets if every render succeeded, so
+     * that a failed build leaves the previous targets intact.
+     * <p>
+     * Default is false
+     */
+    @Parameter(property = "string-template.staged")
+    public boolean staged;
+
+    /**
+     * The directory for staged targets, which is best on the same file system as the targets, so that moves are
+     * atomic renames.
+     * <p>
+     * Default is "${project.build.directory}/string-template/${mojoExecution.executionId}-staging"
+     */
+    @Parameter(defaultValue = "${project.build.directory}/string-template/${mojoExecution.executionId}-staging")
+    public String stagingDir;
+
+    /**
+     * If true and staged, sync each staged file before it's committed, and each target directory once, after its
+     * targets are committed, so that the committed targets survive a crash.
+     * <p>
+     * Default is false
+     */
+    @Parameter(property = "string-template.fsync")
+    public boolean fsync;
+
+    /**
+     * Relative or absolute path of a zip, or jar, file, which the targets of Templates with archive true are written
+     * to, as entries named by their target, in one sequential write, rather than as files.
+     * <p>
+     * If a relative path, it's resolved as a child of "${project.basedir}" directory. The archive is only replaced when
+     * every render has succeeded, so the targets are kept in memory until then, and written sorted by name. Not
+     * supported by the watch goal.
+     */
+    @Parameter(property = "string-template.archiveFile")
+    public String archiveFile;
+
+    /**
+     * If true, store archive entries without compression, which is faster for many small targets.
+     * <p>
+     * Default is false
+     */
+    @Parameter(property = "string-template.archiveStored")
+    public boolean archiveStored;
+
+    /**
+     * The time of every archive entry, ISO-8601, like "2020-01-01T00:00:00Z", or seconds since the epoch, so that
+     * unchanged targets give an identical archive.
+     * <p>
+     * Default is "${project.build.outputTimestamp}", as used by reproducible builds, or 1980-01-01T00:00:00Z if not
+     * set.
+     */
+    @Parameter(defaultValue = "${project.build.outputTimestamp}")
+    public String outputTimestamp;
+
+    /**
+     * If set, the archive is attached to the project, with this classifier, so that it's installed and deployed with
+     * the main artifact; its type is its file extension.
+     */
+    @Parameter(property = "string-template.archiveClassifier")
+    public String archiveClassifier;
+
+    /**
+     * If true, a target with the same content as one already written by this build is hard-linked to it, or copied,
+     * rather than written again, and a render of the same Group template, with the same attributes and encoding, as an
+     * earlier one is skipped. Targets are rendered to memory, to digest their content.
+     * <p>
+     * Hard-linked targets share their content, so an edit in place of one changes the others too.
+     * <p>
+     * Default is false
+     */
+    @Parameter(property = "string-template.dedup")
+    public boolean dedup;
+
+    /**
+     * If true, and dedup, copy identical targets, rather than hard-linking them; they're also copied if the file
+     * system doesn't support hard-links.
+     * <p>
+     * Default is false
+     */
+    @Parameter(property = "string-template.dedupCopy")
+    public boolean dedupCopy;
+
+    /**
+     * If true, save the time spent in each stage by each Group and Template, and the chars and bytes rendered, to
+     * metricsFile, and log the slowest Groups and Templates.
+     * <p>
+     * Default is false
+     */
+    @Parameter(property = "string-template.metrics")
+    public boolean metrics;
+
+    /**
+     * The JSON file for the metrics report.
+     * <p>
+     * Default is "${project.build.directory}/string-template/${mojoExecution.executionId}-metrics.json"
+     */
+    @Parameter(defaultValue = "${project.build.directory}/string-template/${mojoExecution.executionId}-metrics.json")
+    public String metricsFile;
+
+    /**
+     * The number of slowest Groups, and of slowest Templates, logged if metrics.
+     * <p>
+     * Default is 10
+     */
+    @SuppressWarnings("CanBeFinal")
+    @Parameter(property = "string-template.slowestCount")
+    public int slowestCount = 10;
+
     /**
      * The array of groups for use by Templates.
      * <p>
@@ -110,7 +306,12 @@ public final class RenderMojo extends AbstractMojo {
     @Parameter(property = "session", readonly = true)
     MavenSession session;
 
-    private transient boolean failed;
+    @Component
+    MavenProjectHelper projectHelper;
+
+    transient boolean failed;
+    // Set by WatchMojo
+    transient boolean watch;
 
     @Override
     public synchronized String toString() {
@@ -141,54 +342,30 @@ public final class RenderMojo extends AbstractMojo {
                 // TODO: decide if will expose any options.
                 ctx.allOptions();
                 //
-                final Map<String, Group> groupById = initGroups(ctx);
-                initTemplates(ctx, groupById);
-                final ExecutorService es = renderGroupsConcurrently
-                                           ? Executors.newSingleThreadExecutor()
-                                           : Executors.newWorkStealingPool();
-                final int groupCount = groups.length;
-                final List<Future<Void>> futures = new ArrayList<>(groupCount);
-                int i = 0;
-                try {
-                    Stream.of(groups)
-                          .map(es::submit)
-                          .forEach(futures::add);
-                    while (i < groupCount) {
-                        final Group group = groups[i];
-                        final Future<Void> future = futures.get(i);
-                        try {
-                            try {
-                                future.get(group.timeoutDuration, group.timeoutUnit);
-                            } catch (ExecutionException ex) {
-                                throw selectThrow(ex);
-                            }
-                        } catch (STException e) {
-                            throw e;
-                        } catch (Throwable e) {
-                            log.error(format("Render failed for %s (%s)", group, e.getMessage()), e);
-                            if (failed())
-                                break;
-                        }
-                        i++;
-                    }
-                } finally {
-                    // Shutdown ExecutorService and cancel all added futures
-                    es.shutdown();
-                    final int n = futures.size();
-                    while (i < n) {
-                        futures.get(i++).cancel(true);
-                    }
+                try (RenderScheduler scheduler = new RenderScheduler(parallelism())) {
+                    final Map<String, Group> groupById = initGroups(ctx);
+                    initTemplates(ctx, groupById, scheduler);
+                    final List<Group> groups = incremental
+                                               ? skipUpToDate(ctx, referencedGroups(log))
+                                               : referencedGroups(log);
+                    render(groups, scheduler, log);
+                    log.info(format("Render scheduler: %s", scheduler.statistics()));
                 }
                 if (failed)
                     throw new MojoFailureException("Render Failed");
-                log.info("All Groups rendered");
+                try {
+                    ctx.commitStaged();
+                } catch (IOException e) {
+                    throw new MojoFailureException("Commit of staged targets failed", e);
+                }
+                log.info(format("All Groups rendered, %s", ctx.renderCounts()));
             }
         } catch (IOException e) {
             log.warn("Context close failed", e);
         }
     }
 
-    private Map<String, Group> initGroups(final Context ctx) throws MojoExecutionException {
+    Map<String, Group> initGroups(final Context ctx) throws MojoExecutionException {
         final Log log = ctx.log();
         final int count = groups.length;
         final Map<String, Group> byId = new HashMap<>(count);
@@ -230,19 +407,29 @@ public final class RenderMojo extends AbstractMojo {
         return byId;
     }
 
-    private void initTemplates(final Context ctx, final Map<String, Group> groupById) throws MojoExecutionException {
+    /**
+     * Validates the ids of the Templates, in order, then initialises them concurrently via scheduler, because each
+     * parses JSON and checks its target directories, then checks for duplicate targets, in order, so that the errors
+     * reported are the same however the initialisation is scheduled.
+     */
+    @SuppressWarnings({"UseSpecificCatch", "ThrowableResultIgnored"})
+    void initTemplates(final Context ctx, final Map<String, Group> groupById, final RenderScheduler scheduler)
+            throws MojoExecutionException {
         final Log log = ctx.log();
-        boolean failed = false;
         final int count = templates.length;
         final Map<String, Template> byId = new HashMap<>(count);
-        final Map<Path, Template> byTarget = new HashMap<>(count);
+        // The Group of each Template with valid ids, else null
+        final Group[] groupOf = new Group[count];
+        int end = count;
         for (int i = 0; i < count; i++) {
             final Template template = templates[i];
 
             if (null == template.id) {
                 log.error(format("Template %s of %s has no id", i + 1, count));
-                if (failed())
+                if (failed()) {
+                    end = i;
                     break;
+                }
                 continue;
             }
 
@@ -250,8 +437,10 @@ public final class RenderMojo extends AbstractMojo {
             if (null != byId.put(template.id, template)) {
                 log.error(format("Template %s of %s has a duplicate id \"%s\"",
                                  i + 1, count, template.id));
-                if (failed())
+                if (failed()) {
+                    end = i;
                     break;
+                }
                 continue;
             }
 
@@ -260,40 +449,204 @@ public final class RenderMojo extends AbstractMojo {
             if (null == group) {
                 log.error(format("Template id \"%s\" references undefined Group id \"%s\"",
                                  template.id, template.groupId));
-                if (failed())
+                if (failed()) {
+                    end = i;
                     break;
+                }
                 continue;
             }
+            groupOf[i] = group;
+        }
 
-            // Init first to resolve field values, which are then validated here.
-            try {
-                template.init(ctx, group);
-            } catch (Exception e) {
-                log.error(format("Failed to initialise%n%s", template), e);
-                if (failed())
-                    break;
-                continue;
+        // Init first to resolve field values, which are then validated here.
+        final List<Future<Void>> futures = new ArrayList<>(Collections.nCopies(end, null));
+        for (int i = 0; i < end; i++) {
+            final Template template = templates[i];
+            final Group group = groupOf[i];
+            if (null != group)
+                futures.set(i, scheduler.submit(() -> {
+                    template.init(ctx, group);
+                    return null;
+                }));
+        }
+
+        final Map<Path, Template> byTarget = new HashMap<>(count);
+        int i = 0;
+        try {
+            for (; i < end; i++) {
+                final Future<Void> future = futures.get(i);
+                if (null == future)
+                    continue;
+                final Template template = templates[i];
+                try {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        throw selectThrow(ex);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException("Interrupted while initialising Templates", e);
+                } catch (Throwable e) {
+                    log.error(format("Failed to initialise%n%s", template), e);
+                    if (failed())
+                        break;
+                    continue;
+                }
+
+                // Forbid duplicate targetPath
+                boolean duplicate = false;
+                for (Path targetPath : template.targetPaths()) {
+                    final Template prior = byTarget.put(targetPath, template);
+                    if (null != prior) {
+                        log.error(format("Template id \"%s\" has same effective target \"%s\" (targetPath \"%s\") as Template id \"%s\" target \"%s\"",
+                                         template.id, template.target, targetPath,
+                                         prior.id, prior.target));
+                        duplicate = true;
+                        break;
+                    }
+                }
+                if (duplicate) {
+                    if (failed())
+                        break;
+                    continue;
+                }
+
+                // Add to group, all templates for an STGroup can use a transient one.
+                groupOf[i].templates.add(template);
+                if (log.isDebugEnabled())
+                    log.debug("initialised " + template);
             }
+        } finally {
+            // Cancel the rest, if stopped early
+            while (++i < end)
+                if (null != futures.get(i))
+                    futures.get(i).cancel(true);
+        }
+        if (failed)
+            throw new MojoExecutionException("Some Templates had invalid property values");
+    }
 
-            // Forbid duplicate targetPath
-            final Path targetPath = template.targetPath();
-            Template prior = byTarget.put(targetPath, template);
-            if (null != prior) {
-                log.error(format("Template id \"%s\" has same effective target \"%s\" (targetPath \"%s\") as Template id \"%s\" target \"%s\"",
-                                 template.id, template.target, targetPath,
-                                 prior.id, prior.target));
+    /**
+     * Returns the Groups with Templates, because a Group without any is never loaded.
+     */
+    List<Group> referencedGroups(final Log log) {
+        final List<Group> referenced = new ArrayList<>(groups.length);
+        for (Group group : groups) {
+            if (group.templates.isEmpty())
+                log.info(format("Skipped load of Group id \"%s\", no Templates use it", group.id));
+            else
+                referenced.add(group);
+        }
+        return referenced;
+    }
+
+    /**
+     * Removes up-to-date Templates from their Group, and returns the Groups of groups with Templates left to render.
+     */
+    private List<Group> skipUpToDate(final Context ctx, final List<Group> groups) {
+        final Log log = ctx.log();
+        final RenderState state = ctx.renderState();
+        final List<Group> stale = new ArrayList<>(groups.size());
+        int skipped = 0;
+        for (Group group : groups) {
+            final List<Template> templates = group.templates;
+            final String groupFingerprint = group.fingerprint();
+            final int count = templates.size();
+            templates.removeIf(template -> template.upToDate(state, groupFingerprint));
+            skipped += count - templates.size();
+            if (templates.isEmpty()) {
+                if (log.isDebugEnabled())
+                    log.debug(format("Skipped load of Group id \"%s\", all Templates up-to-date", group.id));
+            } else
+                stale.add(group);
+        }
+        log.info(format("Incremental render skipped %d up-to-date Templates", skipped));
+        return stale;
+    }
+
+    /**
+     * Loads each Group, then renders its Templates, all via scheduler.
+     * <p>
+     * If renderGroupsConcurrently, all the Groups are loaded concurrently, and each Group submits its Templates as
+     * soon as it's loaded, so renders don't wait for the slowest load, else each Group is loaded and rendered after
+     * the previous one completes.
+     * <p>
+     * A Group's timeout runs from when its load is submitted, so from the same time for all concurrent Groups.
+     */
+    @SuppressWarnings({"UseSpecificCatch", "ThrowableResultIgnored"})
+    void render(final List<Group> groups, final RenderScheduler scheduler, final Log log) {
+        final int groupCount = groups.size();
+        final List<Pipeline> pipelines = new ArrayList<>(Collections.nCopies(groupCount, null));
+        if (renderGroupsConcurrently) {
+            // Load the Groups with most Templates first, because their renders take longest.
+            final Integer[] order = new Integer[groupCount];
+            Arrays.setAll(order, i -> i);
+            Arrays.sort(order, Comparator.comparingInt((Integer i) -> groups.get(i).templates.size()).reversed());
+            for (int i : order)
+                pipelines.set(i, pipeline(groups.get(i), scheduler));
+        }
+        for (int i = 0; i < groupCount; i++) {
+            final Group group = groups.get(i);
+            try {
+                final Pipeline pipeline = renderGroupsConcurrently
+                                          ? pipelines.get(i)
+                                          : pipeline(group, scheduler);
+                final List<Future<Void>> futures;
+                try {
+                    futures = pipeline.future.get(group.remainingNanos(pipeline.submitted), NANOSECONDS);
+                } catch (ExecutionException ex) {
+                    throw selectThrow(ex);
+                }
+                group.awaitTemplates(futures, pipeline.submitted);
+            } catch (STException e) {
+                throw e;
+            } catch (Throwable e) {
+                log.error(format("Render failed for %s (%s)", group, e.getMessage()), e);
                 if (failed())
-                    break;
-                continue;
+                    return;
             }
+        }
+    }
 
-            // Add to group, all templates for an STGroup can use a transient one.
-            group.templates.add(template);
-            if (log.isDebugEnabled())
-                log.debug("initialised " + template);
+    /**
+     * Returns the future Template futures of group, which are submitted by the task loading group, when it completes.
+     */
+    private static Pipeline pipeline(final Group group, final RenderScheduler scheduler) {
+        final long queued = System.nanoTime();
+        return new Pipeline(scheduler.submit(() -> {
+            group.metrics.add(Metrics.Stage.QUEUE_WAIT, System.nanoTime() - queued);
+            group.call();
+            return group.submitTemplates(scheduler);
+        }), queued);
+    }
+
+    /**
+     * The future Template futures of a Group, and when its load was submitted.
+     */
+    private static final class Pipeline {
+        final Future<List<Future<Void>>> future;
+        final long submitted;
+
+        private Pipeline(final Future<List<Future<Void>>> future, final long submitted) {
+            this.future = future;
+            this.submitted = submitted;
+        }
+    }
+
+    int parallelism() {
+        return parallelism > 0
+               ? parallelism
+               : Runtime.getRuntime().availableProcessors();
+    }
+
+    // Of each archive entry
+    private long archiveTime() throws MojoFailureException {
+        try {
+            return Archive.time(outputTimestamp);
+        } catch (DateTimeException | NumberFormatException e) {
+            throw new MojoFailureException(format("Invalid outputTimestamp '%s' (%s)", outputTimestamp, e.getMessage()), e);
         }
-        if (failed)
-            throw new MojoExecutionException("Some Templates had invalid property values");
     }
 
     private boolean failed() {
@@ -311,8 +664,22 @@ public final class RenderMojo extends AbstractMojo {
         //
         // Private stuff
         private final AtomicBoolean hasJavaFiles = new AtomicBoolean();
-
-        private Context(final Log log) throws MojoFailureException {
+        private final RenderState renderState;
+        private final CompiledCache compiledCache;
+        private final Staging staging;
+        private final Archive archive;
+        private final Dedup dedup;
+        private final Metrics metrics = new Metrics();
+        // Parsed JSON files, by path
+        private final Map<Path, Object> jsonFiles = new ConcurrentHashMap<>();
+        // Parsed JSON strings, because many Templates often have identical attributes
+        private final Map<String, Object> jsonStrings = new ConcurrentHashMap<>();
+        // Target directories already checked, or created, because many Templates usually share them
+        private final Set<Path> targetDirs = ConcurrentHashMap.newKeySet();
+        private final Map<Template.Result, LongAdder> renderCounts = new EnumMap<>(Template.Result.class);
+
+        // Package-private for the benchmarks module
+        Context(final Log log) throws MojoFailureException {
             super();
             //
             final Path baseDir = project.getBasedir().toPath().toAbsolutePath();
@@ -347,12 +714,201 @@ public final class RenderMojo extends AbstractMojo {
             this.log = log;
             this.baseDir = baseDir;
             this.generatedSourcesJavaDir = baseDir.resolve(Utils.GENERATED_SOURCES_JAVA);
+            this.renderState = incremental
+                               ? RenderState.load(baseDir.resolve(renderStateFile), log)
+                               : null;
+            this.compiledCache = RenderMojo.this.compiledCache
+                                 ? new CompiledCache(baseDir.resolve(compiledCacheDir), log)
+                                 : null;
+            try {
+                this.staging = staged
+                               ? new Staging(baseDir.resolve(stagingDir), fsync)
+                               : null;
+            } catch (IOException e) {
+                throw new MojoFailureException(format("Invalid stagingDir '%s' (%s)", stagingDir, e.getMessage()), e);
+            }
+            try {
+                this.archive = null != archiveFile
+                               ? new Archive(baseDir.resolve(archiveFile), archiveStored, archiveTime())
+                               : null;
+            } catch (IOException e) {
+                throw new MojoFailureException(format("Invalid archiveFile '%s' (%s)", archiveFile, e.getMessage()), e);
+            }
+            this.dedup = RenderMojo.this.dedup
+                         ? new Dedup(dedupCopy)
+                         : null;
+            for (Template.Result result : Template.Result.values())
+                renderCounts.put(result, new LongAdder());
+        }
+
+        /**
+         * Also discards uncommitted staged targets and archive, reports the metrics, if enabled, and saves the render
+         * state, if incremental.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (RenderMojo.this.metrics)
+                    reportMetrics();
+                if (null != staging && staging.hasStaged())
+                    discardStaged();
+                if (null != archive)
+                    archive.discard(log);
+                if (null != renderState)
+                    renderState.save();
+            }
         }
 
         Log log() {
             return log;
         }
 
+        // Used by WatchMojo
+        Path templateSrcDir() {
+            return stSrcDir;
+        }
+
+        // Null if not incremental
+        RenderState renderState() {
+            return renderState;
+        }
+
+        // Null if not enabled
+        CompiledCache compiledCache() {
+            return compiledCache;
+        }
+
+        Metrics metrics() {
+            return metrics;
+        }
+
+        // Reported even if the render failed, because a timeout is the most likely reason to want them.
+        private void reportMetrics() {
+            final Path path = baseDir.resolve(metricsFile);
+            try {
+                metrics.save(path);
+                log.info(format("Saved metrics to \"%s\"", path));
+            } catch (IOException e) {
+                log.warn(format("Failed to save metrics to \"%s\" (%s)", path, e.getMessage()));
+            }
+            if (slowestCount > 0)
+                metrics.logSlowest(log, slowestCount);
+        }
+
+        // Null if not staged
+        Staging staging() {
+            return staging;
+        }
+
+        /**
+         * Commits the staged targets, and the archive, attaching it to the project, if archiveClassifier.
+         */
+        void commitStaged() throws IOException {
+            if (null != staging)
+                staging.commit(log);
+            if (null != archive) {
+                archive.commit(log);
+                if (null != archiveClassifier) {
+                    final String fileName = archive.path().getFileName().toString();
+                    final String type = fileName.substring(fileName.lastIndexOf('.') + 1);
+                    projectHelper.attachArtifact(project, type, archiveClassifier, archive.path().toFile());
+                }
+            }
+        }
+
+        // Null if no archiveFile
+        Archive archive() {
+            return archive;
+        }
+
+        // Null if not dedup
+        Dedup dedup() {
+            return dedup;
+        }
+
+        // Also used by WatchMojo, after a failed render
+        void discardStaged() {
+            if (null != staging) {
+                // The targets of these weren't replaced, so must be rendered next time
+                if (null != renderState)
+                    renderState.forget(staging.templateIds());
+                staging.discard(log);
+            }
+        }
+
+        // True if a watch, so loaded Groups are kept, and reloaded when changed
+        boolean watch() {
+            return watch;
+        }
+
+        // True if Templates must record the sources they used, for incremental rendering or a watch
+        boolean trackDependencies() {
+            return null != renderState || watch;
+        }
+
+        // Used by Template for input files
+        Path resolvePath(final String path) {
+            return baseDir.resolve(get(path)).normalize();
+        }
+
+        /**
+         * Returns the parsed content of a JSON file, which is only parsed once per execution, so must not be modified.
+         */
+        Object readJSONFile(final String file) throws IOException {
+            try {
+                return jsonFiles.computeIfAbsent(resolvePath(file), path -> {
+                    try {
+                        return Utils.readJSONFile(path, jsonTree);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Returns the parsed JSON, which is only parsed once per execution, so must not be modified.
+         */
+        Object readJSON(final String json) throws IOException {
+            try {
+                return jsonStrings.computeIfAbsent(json, s -> {
+                    try {
+                        return jsonTree
+                               ? reader.readTree(s)
+                               : reader.readValue(s, Object.class);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        <V> Map<String, V> readJSONMap(final String json, final String name, final int checkDepth) throws IOException {
+            return checkJSONMap(readJSON(json), name, checkDepth);
+        }
+
+        // For values from readJSON() and readJSONFile()
+        <V> Map<String, V> checkJSONMap(final Object value, final String name, final int checkDepth) {
+            return value instanceof JsonNode
+                   ? JsonNodeAdaptor.attributes((JsonNode) value, name, checkDepth)
+                   : Utils.checkJSONMap(value, name, checkDepth);
+        }
+
+        boolean jsonTree() {
+            return jsonTree;
+        }
+
+        // Used by Template, adding a directory once checked, or created
+        Set<Path> targetDirs() {
+            return targetDirs;
+        }
+
         Path resolveTargetPath(String target) {
             Path targetPath = get(target);
             if (targetPath.isAbsolute())
@@ -382,6 +938,39 @@ public final class RenderMojo extends AbstractMojo {
             return failFast;
         }
 
+        boolean writeIfChanged() {
+            return writeIfChanged;
+        }
+
+        boolean shareGroups() {
+            return shareGroups;
+        }
+
+        int parallelism() {
+            return RenderMojo.this.parallelism();
+        }
+
+        // Used by Template to report each successful render.
+        void onRendered(final Template.Result result) {
+            renderCounts.get(result).increment();
+        }
+
+        String renderCounts() {
+            final StringJoiner sj = new StringJoiner(", ");
+            renderCounts.forEach((result, count) -> sj.add(format("%d %s", count.sum(), result)));
+            if (null != dedup)
+                sj.add(dedup.toString());
+            return sj.toString();
+        }
+
+        // Used by WatchMojo, so that each render's counts are logged
+        void resetRenderCounts() {
+            renderCounts.values().forEach(LongAdder::reset);
+            // Targets can change between renders
+            if (null != dedup)
+                dedup.clear();
+        }
+
         String resolveEncoding(String encoding) {
             return null == encoding ? sourceEncoding : encoding.toUpperCase(Locale.ROOT);
         }
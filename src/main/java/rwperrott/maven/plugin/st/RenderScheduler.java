@@ -0,0 +1,128 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * The single bounded pool of threads used for all Group loads and Template renders of an execution, so that
+ * concurrent Groups and Templates can't oversubscribe the CPU cores.
+ * <p>
+ * Tasks must never wait for other tasks, because all the threads could be waiting; the waiting is done by the
+ * execution thread.
+ */
+final class RenderScheduler implements Executor, AutoCloseable {
+    private final int parallelism;
+    private final ThreadPoolExecutor executor;
+    private final long startNanos = System.nanoTime();
+    // Statistics
+    private final LongAdder tasks = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    RenderScheduler(final int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism < 1");
+        this.parallelism = parallelism;
+        final AtomicInteger threadCount = new AtomicInteger();
+        // Threads are only started when needed, so no more than one is used when nothing is concurrent.
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 0L, MILLISECONDS,
+                                               new LinkedBlockingQueue<>(),
+                                               r -> {
+                                                   final Thread t = new Thread(
+                                                           r, "string-template-render-" + threadCount.incrementAndGet());
+                                                   t.setDaemon(true);
+                                                   return t;
+                                               });
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        tasks.increment();
+        maxQueueDepth.accumulateAndGet(queueDepth.incrementAndGet(), Math::max);
+        executor.execute(() -> {
+            queueDepth.decrementAndGet();
+            final long start = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                busyNanos.add(System.nanoTime() - start);
+            }
+        });
+    }
+
+    <T> Future<T> submit(final Callable<T> task) {
+        final FutureTask<T> future = new FutureTask<>(task);
+        execute(future);
+        return future;
+    }
+
+    /**
+     * Returns an Executor which runs its tasks one at a time, in order, via this scheduler.
+     */
+    Executor serial() {
+        return new Serial();
+    }
+
+    String statistics() {
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        final double utilisation = elapsedNanos > 0
+                                   ? 100.0 * busyNanos.sum() / ((double) elapsedNanos * parallelism)
+                                   : 0;
+        return format("%d tasks, parallelism %d, max queue depth %d, utilisation %.1f%%",
+                      tasks.sum(), parallelism, maxQueueDepth.get(), utilisation);
+    }
+
+    /**
+     * Interrupts running tasks, and discards queued ones, because nothing will wait for them.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // Each task is scheduled after the previous one completes, so that it doesn't hold a thread while waiting.
+    private final class Serial implements Executor {
+        private final Queue<Runnable> queue = new ArrayDeque<>();
+        private boolean active;
+
+        @Override
+        public synchronized void execute(final Runnable task) {
+            queue.add(() -> {
+                try {
+                    task.run();
+                } finally {
+                    next();
+                }
+            });
+            if (!active) {
+                active = true;
+                next();
+            }
+        }
+
+        private synchronized void next() {
+            final Runnable task = queue.poll();
+            if (null == task) {
+                active = false;
+                return;
+            }
+            try {
+                RenderScheduler.this.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Closed, so nothing will wait for the rest
+                queue.clear();
+                active = false;
+            }
+        }
+    }
+}
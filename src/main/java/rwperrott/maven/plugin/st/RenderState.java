@@ -0,0 +1,149 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.String.format;
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.Files.newOutputStream;
+import static java.nio.file.StandardOpenOption.*;
+import static rwperrott.maven.plugin.st.Utils.*;
+
+/**
+ * The persisted Template id to input fingerprint and source file digests map, of the last successful renders, used by
+ * incremental rendering.
+ * <p>
+ * The source files are those each render actually used, so a change to another template file of the same group, or a
+ * template of an imported file which wasn't called, doesn't cause a render.
+ * <p>
+ * Only Templates rendered, or skipped as up-to-date, in this execution are saved, so removed or failed Templates will
+ * always be rendered next time.
+ */
+final class RenderState {
+    private final Path path;
+    private final Map<String, Entry> prior;
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+    // Digests of source files, by URL, because many Templates share the same files
+    private final Map<String, String> digests = new ConcurrentHashMap<>();
+
+    private RenderState(final Path path, final Map<String, Entry> prior) {
+        this.path = path;
+        this.prior = prior;
+    }
+
+    static RenderState load(final Path path, final Log log) {
+        Map<String, Entry> prior = Collections.emptyMap();
+        if (Files.isRegularFile(path)) {
+            try {
+                final Map<String, Entry> map = reader.forType(STATE_TYPE).readValue(path.toFile());
+                if (null != map)
+                    prior = map;
+            } catch (IOException e) {
+                // Only costs a full render
+                log.warn(format("Ignored unreadable render state \"%s\" (%s)", path, e.getMessage()));
+            }
+        }
+        return new RenderState(path, prior);
+    }
+
+    /**
+     * Returns true if fingerprint, and the content of every source file used, are unchanged since the last render.
+     */
+    boolean isUpToDate(final String id, final String fingerprint) {
+        final Entry entry = prior.get(id);
+        if (null == fingerprint || null == entry || !fingerprint.equals(entry.fingerprint)
+            || null == entry.dependencies)
+            return false;
+        try {
+            for (Map.Entry<String, String> e : entry.dependencies.entrySet())
+                if (!e.getValue().equals(digest(e.getKey())))
+                    return false;
+        } catch (IOException e) {
+            return false; // Only costs a render
+        }
+        return true;
+    }
+
+    // Used for Templates skipped as up-to-date
+    void keep(final String id) {
+        final Entry entry = prior.get(id);
+        if (null != entry)
+            current.put(id, entry);
+    }
+
+    /**
+     * Records a render, unless fingerprint or sources are null, or a source can't be read, because then it can't be
+     * known to be up-to-date next time.
+     */
+    void record(final String id, final String fingerprint, final Set<String> sources) {
+        if (null == fingerprint || null == sources)
+            return;
+        final Map<String, String> dependencies = new TreeMap<>();
+        try {
+            for (String source : sources)
+                dependencies.put(source, digest(source));
+        } catch (IOException e) {
+            return;
+        }
+        current.put(id, new Entry(fingerprint, dependencies));
+    }
+
+    private String digest(final String source) throws IOException {
+        String digest = digests.get(source);
+        if (null == digest) {
+            digest = Dependencies.digest(source);
+            digests.put(source, digest);
+        }
+        return digest;
+    }
+
+    // Used by WatchMojo, because the sources change between renders
+    void clearDigests() {
+        digests.clear();
+    }
+
+    // Used for Templates whose targets weren't replaced
+    void forget(final Collection<String> ids) {
+        current.keySet().removeAll(ids);
+    }
+
+    void save() throws IOException {
+        createDirectories(path.getParent());
+        final Path pathTmp = path.resolveSibling(path.getFileName().toString() + ".tmp");
+        try (OutputStream os = newOutputStream(pathTmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            writer.writeValue(os, new TreeMap<>(current)); // Sorted for readable diffs
+        }
+        move(pathTmp, path);
+    }
+
+    /**
+     * The persisted state of a Template; an older map of fingerprints is unreadable, so only costs a full render.
+     */
+    static final class Entry {
+        public String fingerprint;
+        // Source file URL to content digest, "" if absent
+        public Map<String, String> dependencies;
+
+        @SuppressWarnings("unused")
+        Entry() { // For Jackson
+        }
+
+        private Entry(final String fingerprint, final Map<String, String> dependencies) {
+            this.fingerprint = fingerprint;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private static final TypeReference<Map<String, Entry>> STATE_TYPE = new TypeReference<Map<String, Entry>>() {
+    };
+}
@@ -0,0 +1,196 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupFile;
+import org.stringtemplate.v4.STGroupString;
+import org.stringtemplate.v4.misc.ErrorManager;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A JVM-wide cache of loaded STGroupString and STGroupFile groups, so that reactor modules and executions sharing a
+ * source only compile it once, including in long-lived Maven daemon JVMs.
+ * <p>
+ * A shared group is never modified after loading, so each execution uses it via a cheap STGroup importing it, which
+ * has its own listener and model adaptors.
+ * <p>
+ * Groups are softly referenced, so can be reclaimed under memory pressure, and a group is reloaded when the
+ * last-modified time of its source, or of a group it imports, changes.
+ */
+final class SharedGroups {
+    private SharedGroups() {
+    }
+
+    private static final Map<Key, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    /**
+     * Synchronize on the result when calling get and set, so that concurrent executions only load a group once.
+     */
+    static Entry entry(final Key key) {
+        return ENTRIES.computeIfAbsent(key, k -> new Entry());
+    }
+
+    /**
+     * Returns true if stGroupClass groups can be shared.
+     */
+    static boolean isShareable(final Class<? extends STGroup> stGroupClass) {
+        // STGroupDir compiles each template on first use, so would need locking for every lookup.
+        return STGroupFile.class.isAssignableFrom(stGroupClass);
+    }
+
+    /**
+     * Replaces the listener of stGroup, and of the groups it imports, which inherited it, with ST's default listener,
+     * so that a shared group doesn't keep the Group which loaded it, or send later errors to its log.
+     * <p>
+     * Each execution uses a shared group via its own importing STGroup, which has its own listener.
+     */
+    static void detachListener(final STGroup stGroup) {
+        detachListener(stGroup, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private static void detachListener(final STGroup stGroup, final Set<STGroup> visited) {
+        if (!visited.add(stGroup))
+            return;
+        stGroup.setListener(ErrorManager.DEFAULT_ERROR_LISTENER);
+        for (STGroup imported : stGroup.getImportedGroups())
+            detachListener(imported, visited);
+    }
+
+    static final class Key {
+        private final String stGroupClass;
+        private final String source;
+        private final String encoding;
+        private final Map<String, String> attributeRenderers;
+        private final Map<String, String> modelAdaptors;
+        private final boolean jsonTree;
+        private final int hashCode;
+
+        /**
+         * @param source the text of a STGroupString, or the resolved URL of a STGroupFile.
+         */
+        Key(final Class<? extends STGroup> stGroupClass,
+            final String source,
+            final String encoding,
+            final Map<String, String> attributeRenderers,
+            final Map<String, String> modelAdaptors,
+            final boolean jsonTree) {
+            this.stGroupClass = stGroupClass.getName();
+            this.source = source;
+            this.encoding = encoding;
+            // Sorted, so that the order of POM map elements doesn't matter.
+            this.attributeRenderers = null == attributeRenderers ? null : new TreeMap<>(attributeRenderers);
+            this.modelAdaptors = null == modelAdaptors ? null : new TreeMap<>(modelAdaptors);
+            this.jsonTree = jsonTree;
+            this.hashCode = Objects.hash(this.stGroupClass, source, encoding,
+                                         this.attributeRenderers, this.modelAdaptors, jsonTree);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key k = (Key) o;
+            return hashCode == k.hashCode
+                   && stGroupClass.equals(k.stGroupClass)
+                   && source.equals(k.source)
+                   && Objects.equals(encoding, k.encoding)
+                   && Objects.equals(attributeRenderers, k.attributeRenderers)
+                   && Objects.equals(modelAdaptors, k.modelAdaptors)
+                   && jsonTree == k.jsonTree;
+        }
+    }
+
+    static final class Entry {
+        private SoftReference<STGroup> ref;
+        // The URLs of the loaded group files, and their last-modified times when loaded
+        private Map<URL, Long> lastModified;
+
+        private Entry() {
+        }
+
+        /**
+         * Returns the shared group, or null if never set, reclaimed, or any of its files changed since set.
+         */
+        STGroup get() {
+            final STGroup stGroup = null == ref ? null : ref.get();
+            if (null == stGroup)
+                return null;
+            for (Map.Entry<URL, Long> e : lastModified.entrySet()) {
+                if (lastModified(e.getKey()) != e.getValue()) {
+                    ref = null;
+                    lastModified = null;
+                    return null;
+                }
+            }
+            return stGroup;
+        }
+
+        /**
+         * Shares a fully loaded group, which must have loaded without errors.
+         *
+         * @return false if stGroup imports a group which can't be shared, so wasn't set.
+         */
+        boolean set(final STGroup stGroup) {
+            final Map<URL, Long> lastModified = new HashMap<>();
+            if (!addLastModified(stGroup, lastModified, Collections.newSetFromMap(new IdentityHashMap<>())))
+                return false;
+            this.ref = new SoftReference<>(stGroup);
+            this.lastModified = lastModified;
+            return true;
+        }
+
+        // Also loads imported groups, so that no lazy loading can occur once shared.
+        private static boolean addLastModified(final STGroup stGroup,
+                                               final Map<URL, Long> lastModified,
+                                               final Set<STGroup> visited) {
+            if (!visited.add(stGroup))
+                return true;
+            if (!(stGroup instanceof STGroupFile))
+                return false;
+            stGroup.load();
+            // STGroupString extends STGroupFile, but has a fake url.
+            if (!(stGroup instanceof STGroupString)) {
+                final URL url = ((STGroupFile) stGroup).url;
+                lastModified.put(url, lastModified(url));
+            }
+            for (STGroup imported : stGroup.getImportedGroups()) {
+                if (!addLastModified(imported, lastModified, visited))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the last-modified time of url, or 0 if unknown, or it doesn't exist.
+     */
+    private static long lastModified(final URL url) {
+        try {
+            if ("file".equals(url.getProtocol()))
+                return Files.getLastModifiedTime(Paths.get(url.toURI())).toMillis();
+            final URLConnection connection = url.openConnection();
+            connection.setUseCaches(false);
+            return connection.getLastModified();
+        } catch (IOException | URISyntaxException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static java.nio.file.StandardOpenOption.*;
+import static rwperrott.maven.plugin.st.Utils.move;
+
+/**
+ * The ".gz" and ".deflate" compressed copies of a target, written from the encoded bytes of its render, as they're
+ * written to the target, so that a web server can serve them precompressed, without a separate step reading the
+ * targets back.
+ * <p>
+ * Each render task compresses its own targets, so compression runs in parallel across Templates. Deflaters, and the
+ * output buffer, are reused per thread, because a Deflater allocates a large native state; so, like EncodingWriter,
+ * must only be used by the thread which called open(), until closed.
+ * <p>
+ * Written to temporary siblings, or staging files, if staged, like the target, and moved by commit.
+ */
+final class Sidecars implements Closeable {
+    static final String GZIP_SUFFIX = ".gz";
+    static final String DEFLATE_SUFFIX = ".deflate";
+
+    private static final ThreadLocal<Deflaters> DEFLATERS = ThreadLocal.withInitial(Deflaters::new);
+    // The header GZIPOutputStream writes: magic, CM deflate, no flags, no mtime, no XFL, OS 0
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final Sidecar gzip;
+    private final Sidecar deflate;
+    private final byte[] out;
+    private boolean committed;
+
+    private Sidecars(final Sidecar gzip, final Sidecar deflate, final byte[] out) {
+        this.gzip = gzip;
+        this.deflate = deflate;
+        this.out = out;
+    }
+
+    /**
+     * Returns the sidecars of targetPath, or null if neither gzip nor deflate.
+     */
+    static Sidecars open(final Path targetPath, final boolean gzip, final boolean deflate, final int level,
+                         final Staging staging, final String templateId) throws IOException {
+        if (!gzip && !deflate)
+            return null;
+        final Deflaters deflaters = DEFLATERS.get();
+        Sidecar gz = null;
+        Sidecar df = null;
+        try {
+            if (gzip) {
+                gz = new Sidecar(sibling(targetPath, GZIP_SUFFIX), staging, templateId, deflaters.raw, level);
+                gz.channel.write(ByteBuffer.wrap(GZIP_HEADER));
+            }
+            if (deflate)
+                df = new Sidecar(sibling(targetPath, DEFLATE_SUFFIX), staging, templateId, deflaters.zlib, level);
+        } catch (IOException e) {
+            if (null != gz)
+                gz.discard();
+            throw e;
+        }
+        return new Sidecars(gz, df, deflaters.out);
+    }
+
+    /**
+     * Returns true if every sidecar of targetPath exists.
+     */
+    static boolean exist(final Path targetPath, final boolean gzip, final boolean deflate) {
+        return (!gzip || Files.exists(sibling(targetPath, GZIP_SUFFIX)))
+               && (!deflate || Files.exists(sibling(targetPath, DEFLATE_SUFFIX)));
+    }
+
+    private static Path sibling(final Path targetPath, final String suffix) {
+        return targetPath.resolveSibling(targetPath.getFileName().toString() + suffix);
+    }
+
+    /**
+     * Compresses len bytes of b, from off.
+     */
+    void write(final byte[] b, final int off, final int len) throws IOException {
+        if (null != gzip) {
+            gzip.crc.update(b, off, len);
+            gzip.size += len;
+            gzip.deflate(b, off, len, out);
+        }
+        if (null != deflate)
+            deflate.deflate(b, off, len, out);
+    }
+
+    /**
+     * Returns a channel, which writes to channel, and compresses what it writes.
+     */
+    WritableByteChannel tee(final WritableByteChannel channel) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(final ByteBuffer src) throws IOException {
+                // EncodingWriter only writes heap buffers
+                final int position = src.position();
+                final int n = channel.write(src);
+                Sidecars.this.write(src.array(), src.arrayOffset() + position, n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Finishes the compressed copies, syncs them, if fsync, then moves them to their paths, unless staged.
+     */
+    void commit(final boolean fsync) throws IOException {
+        if (null != gzip) {
+            gzip.finish(out);
+            final ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            trailer.putInt((int) gzip.crc.getValue()).putInt((int) gzip.size).flip();
+            while (trailer.hasRemaining())
+                gzip.channel.write(trailer);
+            gzip.commit(fsync);
+        }
+        if (null != deflate) {
+            deflate.finish(out);
+            deflate.commit(fsync);
+        }
+        committed = true;
+    }
+
+    /**
+     * Deletes any temporary files, if not committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed)
+            return;
+        if (null != gzip)
+            gzip.discard();
+        if (null != deflate)
+            deflate.discard();
+    }
+
+    private static final class Sidecar {
+        final Path path;
+        final Path pathTmp;
+        final boolean staged;
+        final FileChannel channel;
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        long size;
+
+        private Sidecar(final Path path, final Staging staging, final String templateId,
+                        final Deflater deflater, final int level) throws IOException {
+            this.path = path;
+            this.staged = null != staging;
+            this.pathTmp = staged
+                           ? staging.stage(path, templateId)
+                           : path.resolveSibling(path.getFileName().toString() + ".tmp");
+            this.channel = FileChannel.open(pathTmp, CREATE, WRITE, TRUNCATE_EXISTING);
+            deflater.reset();
+            deflater.setLevel(level);
+            this.deflater = deflater;
+        }
+
+        void deflate(final byte[] b, final int off, final int len, final byte[] out) throws IOException {
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput())
+                drain(out);
+        }
+
+        void finish(final byte[] out) throws IOException {
+            deflater.finish();
+            while (!deflater.finished())
+                drain(out);
+        }
+
+        private void drain(final byte[] out) throws IOException {
+            final int n = deflater.deflate(out, 0, out.length);
+            final ByteBuffer bb = ByteBuffer.wrap(out, 0, n);
+            while (bb.hasRemaining())
+                channel.write(bb);
+        }
+
+        void commit(final boolean fsync) throws IOException {
+            if (fsync)
+                channel.force(false);
+            channel.close();
+            if (!staged)
+                move(pathTmp, path);
+        }
+
+        // A staged file is deleted by discard of the staging
+        void discard() throws IOException {
+            channel.close();
+            if (!staged)
+                Files.deleteIfExists(pathTmp);
+        }
+    }
+
+    /**
+     * A thread's Deflaters, and output buffer.
+     */
+    private static final class Deflaters {
+        // GZIP wraps raw deflate data in its own header and trailer
+        final Deflater raw = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        // The HTTP "deflate" content-coding is the zlib format
+        final Deflater zlib = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+        final byte[] out = new byte[64 * 1024];
+    }
+}
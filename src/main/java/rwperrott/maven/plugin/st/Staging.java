@@ -0,0 +1,139 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+import static java.nio.file.Files.createDirectories;
+import static java.nio.file.StandardOpenOption.READ;
+import static rwperrott.maven.plugin.st.Utils.move;
+
+/**
+ * A directory where all the targets of an execution are rendered, then only moved to their targets when every
+ * render has succeeded, so that a failed build leaves the previous targets intact.
+ * <p>
+ * The moves are batched by target directory, and each directory is only synced once, if fsync.
+ * <p>
+ * Reusable after a commit or discard, for each render of a watch.
+ */
+final class Staging {
+    private final Path dir;
+    private final boolean fsync;
+    private final AtomicLong count = new AtomicLong();
+    private final Queue<Staged> staged = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Deletes any files left in dir by a failed commit.
+     */
+    Staging(final Path dir, final boolean fsync) throws IOException {
+        this.dir = dir;
+        this.fsync = fsync;
+        createDirectories(dir);
+        deleteFiles();
+    }
+
+    @Override
+    public String toString() {
+        return "Staging{dir=" + dir + '}';
+    }
+
+    boolean fsync() {
+        return fsync;
+    }
+
+    /**
+     * Returns a unique path in the staging directory, to write the content of targetPath to, which is moved to
+     * targetPath by commit.
+     */
+    Path stage(final Path targetPath, final String templateId) {
+        final Path stagedPath = dir.resolve(count.incrementAndGet() + "-" + targetPath.getFileName());
+        staged.add(new Staged(stagedPath, targetPath, templateId));
+        return stagedPath;
+    }
+
+    /**
+     * Returns the ids of the Templates with staged targets, which won't be the content of their targets if not
+     * committed.
+     */
+    Set<String> templateIds() {
+        final Set<String> ids = new HashSet<>();
+        staged.forEach(s -> ids.add(s.templateId));
+        return ids;
+    }
+
+    /**
+     * Returns true if any files are staged, but not committed or discarded.
+     */
+    boolean hasStaged() {
+        return !staged.isEmpty();
+    }
+
+    /**
+     * Moves each staged file to its target, a directory at a time.
+     */
+    void commit(final Log log) throws IOException {
+        final Map<Path, List<Staged>> byTargetDir = new TreeMap<>();
+        for (Staged s : staged)
+            byTargetDir.computeIfAbsent(s.targetPath.getParent(), k -> new ArrayList<>()).add(s);
+        for (Map.Entry<Path, List<Staged>> e : byTargetDir.entrySet()) {
+            final Path targetDir = e.getKey();
+            createDirectories(targetDir);
+            for (Staged s : e.getValue())
+                move(s.stagedPath, s.targetPath);
+            if (fsync)
+                force(targetDir);
+        }
+        log.info(format("Committed %d staged targets to %d directories", staged.size(), byTargetDir.size()));
+        staged.clear();
+    }
+
+    /**
+     * Deletes all the staged files, leaving the targets untouched.
+     */
+    void discard(final Log log) {
+        try {
+            deleteFiles();
+        } catch (IOException e) {
+            log.warn(format("Failed to delete staged files in \"%s\" (%s)", dir, e.getMessage()));
+        }
+        staged.clear();
+    }
+
+    private void deleteFiles() throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path path : ds)
+                Files.deleteIfExists(path);
+        }
+    }
+
+    // Syncs the moves into dir, which some platforms, like Windows, don't allow, so isn't an error
+    private static void force(final Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class Staged {
+        final Path stagedPath;
+        final Path targetPath;
+        final String templateId;
+
+        private Staged(final Path stagedPath, final Path targetPath, final String templateId) {
+            this.stagedPath = stagedPath;
+            this.targetPath = targetPath;
+            this.templateId = templateId;
+        }
+    }
+}
@@ -4,35 +4,37 @@
 
 package rwperrott.maven.plugin.st;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.Parameter;
-import org.stringtemplate.v4.AutoIndentWriter;
-import org.stringtemplate.v4.NoIndentWriter;
 import org.stringtemplate.v4.ST;
-import org.stringtemplate.v4.STWriter;
 import org.stringtemplate.v4.compiler.STException;
 import org.stringtemplate.v4.misc.STMessage;
 import rwperrott.stringtemplate.v4.STErrorConsumer;
 import rwperrott.stringtemplate.v4.ToStringBuilder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import static java.lang.Long.MAX_VALUE;
 import static java.lang.String.format;
 import static java.nio.charset.Charset.forName;
 import static java.nio.file.Files.createDirectories;
-import static java.nio.file.Files.newOutputStream;
 import static java.nio.file.StandardOpenOption.*;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.regex.Pattern.compile;
@@ -76,6 +78,39 @@ public final class Template implements STErrorConsumer, Callable<Void> {
      */
     @Parameter
     public String jsonAttributes;
+    /**
+     * Relative or absolute path of a JSON file of a Map of attributes to be supplied to the template, which is applied
+     * before jsonAttributes.
+     * <p>
+     * If a relative path, it's resolved as a child of "${project.basedir}" directory. Each file is only parsed once,
+     * however many Templates use it.
+     */
+    @Parameter
+    public String jsonAttributesFile;
+    /**
+     * An optional JSON serialised array of attribute Maps, to render this template once per Map, to the target with
+     * each "{name}" placeholder replaced by the value of the named attribute of the Map, or of jsonAttributes.
+     * <p>
+     * Each Map is applied after jsonAttributes. Placeholders don't start with "$", to avoid Maven interpolation.
+     */
+    @Parameter
+    public String jsonDataset;
+    /**
+     * Relative or absolute path of a JSON file of an array of attribute Maps, used like jsonDataset.
+     * <p>
+     * If a relative path, it's resolved as a child of "${project.basedir}" directory.
+     */
+    @Parameter
+    public String datasetFile;
+    /**
+     * The number of dataset Maps rendered by each task, because a task per Map would cost more to schedule than to
+     * render small files.
+     * <p>
+     * Default is 32
+     */
+    @SuppressWarnings("CanBeFinal")
+    @Parameter
+    public int datasetBatchSize = 32;
     /**
      * Relative or absolute path of file to be rendered.
      * <p>
@@ -108,6 +143,49 @@ public final class Template implements STErrorConsumer, Callable<Void> {
      */
     @Parameter
     public boolean withUnicodeBOM;
+    /**
+     * If true, render to memory, and only replace the target file if its content differs, so that an unchanged target
+     * file keeps its timestamp, and isn't recompiled or re-indexed.
+     * <p>
+     * Default is false
+     */
+    @Parameter
+    public boolean writeIfChanged;
+    /**
+     * If true, write the rendered bytes as an entry of the archiveFile of the execution, named by target, which must be
+     * a relative path, rather than to a file; writeIfChanged doesn't apply, and incremental rendering always renders
+     * it, because the archive is written whole.
+     * <p>
+     * Default is false
+     */
+    @Parameter
+    public boolean archive;
+    /**
+     * If true, also write a gzip compressed copy of each target, to its path with ".gz" appended, compressed from the
+     * rendered bytes as they're written, so that a web server can serve it precompressed, without a separate step
+     * reading the target back.
+     * <p>
+     * Default is false
+     */
+    @Parameter
+    public boolean gzip;
+    /**
+     * If true, also write a zlib, i.e. HTTP "deflate" content-coding, compressed copy of each target, to its path with
+     * ".deflate" appended, like gzip.
+     * <p>
+     * Default is false
+     */
+    @Parameter
+    public boolean deflate;
+    /**
+     * The java.util.zip.Deflater compression level of gzip and deflate copies, from 0 (none) to 9 (best), or -1 for the
+     * default, which is 6.
+     * <p>
+     * Default is -1
+     */
+    @SuppressWarnings("CanBeFinal")
+    @Parameter
+    public int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 
     //
     // Transient variables
@@ -143,15 +221,28 @@ public final class Template implements STErrorConsumer, Callable<Void> {
      */
     @SuppressWarnings("unused")
     private transient Map<String, Object> attributes;
+    // The Group attributes for name, with attributes on top
+    private transient AttributeScope attributeScope;
     private transient Path targetPath;
+    // Not null if a dataset was provided
+    private transient List<Output> outputs;
     private transient Charset targetCharset;
     private transient boolean isJava;
     private transient UnicodeBOM unicodeBOM;
+    private transient String fingerprint;
+    // A digest of the render inputs, for dedup, null if not deduplicating renders
+    private transient String inputs;
+    private transient Result result;
     //
     private transient RenderMojo.Context ctx;
     private transient Group group;
     private transient ST st;
     private transient boolean failed;
+    private transient Metrics.Record metrics;
+    // Not null if recording the sources used by the current render
+    private transient Dependencies dependencies;
+    // The file system paths of the sources used by the last render, null if unknown; only a watch uses them
+    private transient volatile Set<Path> dependencyPaths;
 
     @Override
     public String toString() {
@@ -160,12 +251,21 @@ public final class Template implements STErrorConsumer, Callable<Void> {
         ts.add("groupId", groupId);
         ts.add("name", name);
         ts.add("jsonAttributes", jsonAttributes);
+        ts.add("jsonAttributesFile", jsonAttributesFile);
+        ts.add("jsonDataset", jsonDataset);
+        ts.add("datasetFile", datasetFile);
+        ts.add("datasetBatchSize", datasetBatchSize);
         ts.add("target", target);
         ts.add("targetPath", targetPath);
         ts.add("targetEncoding", targetEncoding);
         ts.add("allowNoSuchProperty", allowNoSuchProperty);
         ts.add("withUnicodeBOM", withUnicodeBOM);
         ts.add("autoIndent", autoIndent);
+        ts.add("writeIfChanged", writeIfChanged);
+        ts.add("archive", archive);
+        ts.add("gzip", gzip);
+        ts.add("deflate", deflate);
+        ts.add("compressionLevel", compressionLevel);
         ts.add("timeoutUnit", timeoutUnit);
         ts.add("timeoutDuration", timeoutDuration);
         ts.add("isJava", isJava);
@@ -176,8 +276,13 @@ public final class Template implements STErrorConsumer, Callable<Void> {
         return ts.toString();
     }
 
-    Path targetPath() {
-        return targetPath;
+    // Used by RenderMojo to forbid duplicate targets
+    List<Path> targetPaths() {
+        if (null == outputs)
+            return Collections.singletonList(targetPath);
+        final List<Path> targetPaths = new ArrayList<>(outputs.size());
+        outputs.forEach(output -> targetPaths.add(output.targetPath));
+        return targetPaths;
     }
 
     private boolean failed() {
@@ -185,11 +290,71 @@ public final class Template implements STErrorConsumer, Callable<Void> {
         return failFast;
     }
 
+    /**
+     * Used by RenderMojo for incremental rendering, to skip rendering if the inputs are unchanged since last rendered,
+     * and the target file still exists.
+     */
+    boolean upToDate(final RenderState state, final String groupFingerprint) {
+        try {
+            fingerprint = fingerprint(groupFingerprint);
+        } catch (IOException e) {
+            ctx.log().warn(format("Failed to fingerprint Template id \"%s\" (%s)", id, e.getMessage()));
+            return false;
+        }
+        // An archive is written whole, so its entries must all be rendered again
+        if (archive || !state.isUpToDate(id, fingerprint))
+            return false;
+        if (null == outputs) {
+            if (null == existsAttributes(targetPath) || !Sidecars.exist(targetPath, gzip, deflate))
+                return false;
+        } else {
+            for (Output output : outputs)
+                if (null == existsAttributes(output.targetPath) || !Sidecars.exist(output.targetPath, gzip, deflate))
+                    return false;
+        }
+        state.keep(id);
+        if (isJava)
+            ctx.onGeneratedSourcesJavaFile();
+        return true;
+    }
+
+    private String fingerprint(final String groupFingerprint) throws IOException {
+        if (null == groupFingerprint)
+            return null;
+        final Fingerprint fp = new Fingerprint()
+                .add(groupFingerprint)
+                .add(name)
+                .add(jsonAttributes)
+                .add(jsonAttributesFile)
+                .add(null == outputs ? targetPath.toString() : target)
+                .add(targetCharset.name())
+                .add(allowNoSuchProperty)
+                .add(withUnicodeBOM)
+                .add(autoIndent)
+                .add(gzip)
+                .add(deflate)
+                .add(String.valueOf(compressionLevel));
+        group.addAttributes(fp, name);
+        if (null != jsonAttributesFile)
+            fp.addContent(ctx.resolvePath(jsonAttributesFile));
+        if (null != outputs) {
+            final List<Map<String, Object>> dataset = new ArrayList<>(outputs.size());
+            outputs.forEach(output -> dataset.add(output.attributes));
+            fp.add(writer.writeValueAsBytes(dataset));
+        }
+        return fp.toHex();
+    }
+
     // synchronized this maybe required for thread-safety.
     void init(final RenderMojo.Context ctx, final Group group) throws Exception {
+        this.metrics = ctx.metrics().template(id);
+        final long parseStart = System.nanoTime();
         // Deserialize JSON to a Map, then validate to ensure that all the map keys are Strings.
+        if (jsonAttributesFile != null)
+            attributes = ctx.checkJSONMap(ctx.readJSONFile(jsonAttributesFile), "jsonAttributesFile", 0);
         if (jsonAttributes != null)
-            attributes = readAndCheckJSONMap(jsonAttributes, "jsonAttributes", 0);
+            attributes = merge(attributes, ctx.readJSONMap(jsonAttributes, "jsonAttributes", 0));
+        attributeScope = group.attributeScope(name).with(attributes);
 
         { // Resolve and validate targetEncoding
             targetEncoding = ctx.resolveEncoding(targetEncoding);
@@ -202,11 +367,101 @@ public final class Template implements STErrorConsumer, Callable<Void> {
             }
         }
 
-        targetPath = ctx.resolveTargetPath(target).normalize();
-        isJava = ctx.isGeneratedSourcesJavaFile(targetPath);
+        if (gzip || deflate) {
+            if (archive)
+                throw new IllegalArgumentException("gzip and deflate aren't supported for an archive entry");
+            if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+                throw new IllegalArgumentException(format("invalid compressionLevel %d", compressionLevel));
+        }
+
+        if (null != jsonDataset || null != datasetFile) {
+            if (null != jsonDataset && null != datasetFile)
+                throw new IllegalArgumentException("only one of jsonDataset and datasetFile allowed");
+            if (datasetBatchSize < 1)
+                throw new IllegalArgumentException("datasetBatchSize < 1");
+            final List<Map<String, Object>> dataset = readDataset(ctx);
+            final List<Output> outputs = new ArrayList<>(dataset.size());
+            for (Map<String, Object> attributes : dataset) {
+                final String expanded = expandTarget(attributes);
+                if (archive) {
+                    outputs.add(new Output(attributes, entryPath(ctx, expanded), false));
+                    continue;
+                }
+                final Path targetPath = ctx.resolveTargetPath(expanded).normalize();
+                final boolean isJava = ctx.isGeneratedSourcesJavaFile(targetPath);
+                outputs.add(new Output(attributes, targetPath, isJava));
+                this.isJava |= isJava;
+                checkTargetDir(ctx, targetPath.getParent());
+            }
+            this.outputs = outputs;
+            metrics.add(Metrics.Stage.JSON_PARSE, System.nanoTime() - parseStart);
+        } else {
+            metrics.add(Metrics.Stage.JSON_PARSE, System.nanoTime() - parseStart);
+            if (archive)
+                targetPath = entryPath(ctx, target);
+            else {
+                targetPath = ctx.resolveTargetPath(target).normalize();
+                isJava = ctx.isGeneratedSourcesJavaFile(targetPath);
+                checkTargetDir(ctx, targetPath.getParent());
+            }
+        }
+
+        // A skipped render has no bytes to compress
+        if (null != ctx.dedup() && !archive && !gzip && !deflate)
+            initInputs(ctx);
+
+        this.ctx = ctx;
+        this.failFast |= group.failFast;
+        this.writeIfChanged |= ctx.writeIfChanged();
+        this.group = group;
+    }
 
+    /**
+     * Digests the inputs of each render, so that dedup can skip one identical to an earlier render, of any Template.
+     */
+    private void initInputs(final RenderMojo.Context ctx) {
+        try {
+            final String base = new Fingerprint()
+                    .add(groupId)
+                    .add(name)
+                    .add(targetCharset.name())
+                    .add(allowNoSuchProperty) // A skipped render can't report errors
+                    .add(withUnicodeBOM)
+                    .add(autoIndent)
+                    .add(writer.writeValueAsBytes(attributeScope.toMap()))
+                    .toHex();
+            if (null == outputs)
+                inputs = base;
+            else
+                for (Output output : outputs)
+                    output.inputs = new Fingerprint()
+                            .add(base)
+                            .add(writer.writeValueAsBytes(output.attributes))
+                            .toHex();
+        } catch (IOException e) {
+            // Still rendered, so only identical content is deduplicated
+            ctx.log().warn(format("Failed to digest attributes of Template id \"%s\" for dedup (%s)",
+                                  id, e.getMessage()));
+        }
+    }
+
+    /**
+     * Returns target as the relative path of an archive entry.
+     */
+    private static Path entryPath(final RenderMojo.Context ctx, final String target) {
+        if (null == ctx.archive())
+            throw new IllegalArgumentException("archive is true, but there's no archiveFile");
+        final Path path = Paths.get(target).normalize();
+        if (path.isAbsolute() || path.startsWith(".."))
+            throw new IllegalArgumentException(format("archive entry target \"%s\" isn't a relative path", target));
+        return path;
+    }
 
-        final Path targetDir = targetPath.getParent();
+    private void checkTargetDir(final RenderMojo.Context ctx, final Path targetDir) throws IOException {
+        // Many Templates, and outputs, usually share a directory
+        final Set<Path> checked = ctx.targetDirs();
+        if (checked.contains(targetDir))
+            return;
         final BasicFileAttributes targetDirAttributes = existsAttributes(targetDir);
         if (null == targetDirAttributes) {
             createDirectories(targetDir);
@@ -215,54 +470,252 @@ public final class Template implements STErrorConsumer, Callable<Void> {
                 throw new FileNotFoundException(
                         format("parent of target '%s' is not a directory", target));
         }
+        checked.add(targetDir);
+    }
 
-        this.ctx = ctx;
-        this.failFast |= group.failFast;
-        this.group = group;
+    private List<Map<String, Object>> readDataset(final RenderMojo.Context ctx) throws IOException {
+        final Object value = null != jsonDataset
+                             ? ctx.readJSON(jsonDataset)
+                             : ctx.readJSONFile(datasetFile);
+        final List<?> list;
+        if (value instanceof JsonNode && ((JsonNode) value).isArray()) {
+            final List<JsonNode> elements = new ArrayList<>(((JsonNode) value).size());
+            ((JsonNode) value).elements().forEachRemaining(elements::add);
+            list = elements;
+        } else if (value instanceof List)
+            list = (List<?>) value;
+        else
+            throw new IllegalArgumentException("dataset is not a JSON array");
+        final List<Map<String, Object>> dataset = new ArrayList<>(list.size());
+        for (int i = 0, n = list.size(); i < n; i++) {
+            final Object element = list.get(i);
+            final String elementName = format("dataset[%d]", i);
+            dataset.add(ctx.checkJSONMap(element, elementName, 0));
+        }
+        return dataset;
+    }
+
+    /**
+     * Returns target, with each "{name}" placeholder replaced by the value of the named attribute.
+     */
+    private String expandTarget(final Map<String, Object> elementAttributes) {
+        final Matcher m = PLACEHOLDER.matcher(target);
+        final StringBuffer sb = new StringBuffer(target.length() + 32);
+        while (m.find()) {
+            final String key = m.group(1);
+            Object value = elementAttributes.get(key);
+            if (null == value && null != attributes)
+                value = attributes.get(key);
+            if (null == value)
+                throw new IllegalArgumentException(format("no \"%s\" attribute for target \"%s\"", key, target));
+            m.appendReplacement(sb, Matcher.quoteReplacement(value.toString()));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Submits the render task(s) to executor, returning a future completed when all have completed.
+     * <p>
+     * A dataset is rendered in batches of datasetBatchSize, each using the same ST, to minimise lookups and task
+     * overhead.
+     */
+    // Used by Group.submitTemplates()
+    Future<Void> submit(final Executor executor) {
+        failed = false; // A watch renders again
+        dependencies = ctx.trackDependencies() ? group.newDependencies() : null;
+        final long queued = System.nanoTime();
+        if (null == outputs) {
+            final FutureTask<Void> future = new FutureTask<>(() -> {
+                metrics.add(Metrics.Stage.QUEUE_WAIT, System.nanoTime() - queued);
+                return call();
+            });
+            executor.execute(future);
+            return future;
+        }
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final int n = outputs.size();
+        if (0 == n) {
+            completed(0);
+            future.complete(null);
+            return future;
+        }
+        final AtomicInteger remaining = new AtomicInteger((n + datasetBatchSize - 1) / datasetBatchSize);
+        for (int from = 0; from < n; from += datasetBatchSize) {
+            final int start = from;
+            final int end = Math.min(n, from + datasetBatchSize);
+            executor.execute(() -> {
+                metrics.add(Metrics.Stage.QUEUE_WAIT, System.nanoTime() - queued);
+                if (future.isDone()) // Cancelled, or another batch failed
+                    return;
+                try {
+                    renderBatch(start, end);
+                    if (0 == remaining.decrementAndGet()) {
+                        completed(n);
+                        future.complete(null);
+                    }
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+        return future;
     }
 
-    @Override
     @SuppressWarnings("UseSpecificCatch")
-    public Void call() throws Exception {
+    private void renderBatch(final int from, final int to) {
         final Log log = ctx.log();
+        final CompiledGroup.Instance instance = group.acquire();
+        try {
+            for (int i = from; i < to; i++) {
+                final Output output = outputs.get(i);
+                final AttributeScope scope = attributeScope.with(output.attributes);
+                final ST st = getST(instance, scope);
+                final Result result;
+                try {
+                    result = render(st, scope, output.targetPath, output.inputs);
+                } catch (Exception e) {
+                    throw new STException(format("render failed for %s target \"%s\"", this, output.targetPath), e);
+                }
+                if (failed)
+                    throw new STException(format("render failed for %s target \"%s\"", this, output.targetPath), null);
+                if (log.isDebugEnabled())
+                    log.debug(format("Render completed for Template id \"%s\" target \"%s\" (%s)",
+                                     id, output.targetPath, result));
+                ctx.onRendered(result);
+                if (output.isJava)
+                    ctx.onGeneratedSourcesJavaFile();
+            }
+        } finally {
+            group.release(instance);
+        }
+    }
+
+    private void completed(final int count) {
+        ctx.log().info(format("Render completed for Template id \"%s\" (%d dataset targets)", id, count));
+        recordDependencies();
+    }
+
+    /**
+     * Records the sources used by a successful render, for incremental rendering, and a watch.
+     */
+    private void recordDependencies() {
+        final Set<String> sources = null == dependencies
+                                    ? null
+                                    : dependencies.sources();
+        Set<Path> paths = null;
+        if (null != sources) {
+            paths = new HashSet<>();
+            for (String source : sources) {
+                final Path path = Dependencies.path(source);
+                if (null != path)
+                    paths.add(path);
+            }
+        }
+        dependencyPaths = paths;
+        final RenderState state = ctx.renderState();
+        if (null != state)
+            state.record(id, fingerprint, sources);
+    }
 
-        // Get template
-        final ST st;
+    /**
+     * Returns true if the last render used a changed source, or its sources aren't known.
+     */
+    // Used by Group.invalidate()
+    boolean dependsOn(final Set<Path> changed) {
+        final Set<Path> paths = dependencyPaths;
+        if (null == paths)
+            return true;
+        for (Path path : changed)
+            for (Path dependency : paths)
+                if (path.startsWith(dependency)) // The file, or in a directory
+                    return true;
+        return false;
+    }
+
+    @SuppressWarnings("UseSpecificCatch")
+    private ST getST(final CompiledGroup.Instance instance, final AttributeScope scope) {
         try {
-            st = group.getST(name, attributes, this);
+            final long start = System.nanoTime();
+            final ST st = instance.getST(name, scope, this);
+            metrics.add(Metrics.Stage.GET_ST, System.nanoTime() - start);
+            return st;
         } catch (Exception e) {
             throw new STException("failed to get ST instance for " + this, e);
         }
-        this.st = st;
+    }
 
-        Files.deleteIfExists(targetPath);
+    /**
+     * Renders st to targetPath, unless writeIfChanged and the content is unchanged, as a JFR event, if recording.
+     */
+    private Result render(final ST st, final AttributeScope scope, final Path targetPath, final String inputs)
+            throws IOException {
+        final FlightEvents.Event event = FlightEvents.TEMPLATE_RENDER.begin();
+        final long bytes = writeTarget(st, scope, targetPath, inputs);
+        if (null != event)
+            event.commit(id, name, targetPath.toString(), Math.max(0, bytes));
+        return bytes < 0 ? Result.UNCHANGED : Result.WRITTEN;
+    }
 
-        // Render template
+    /**
+     * Returns the number of bytes written, or -1 if unchanged.
+     */
+    private long writeTarget(final ST st, final AttributeScope scope, final Path targetPath, final String inputs)
+            throws IOException {
+        if (archive)
+            return writeEntry(st, scope, targetPath);
+        if (null != ctx.dedup())
+            return writeDeduplicated(st, scope, targetPath, inputs, ctx.dedup());
+        if (writeIfChanged) {
+            final long start = System.nanoTime();
+            final Buffer buffer = new Buffer();
+            final long chars = write(st, scope, buffer);
+            final long rendered = System.nanoTime();
+            metrics.rendered(rendered - start, chars, buffer.size());
+            try {
+                if (buffer.contentEquals(targetPath)) {
+                    writeMissingSidecars(targetPath, buffer);
+                    return -1;
+                }
+                return writeAndMove(st, scope, targetPath, buffer);
+            } finally {
+                metrics.add(Metrics.Stage.FLUSH_MOVE, System.nanoTime() - rendered);
+            }
+        }
+        if (null == ctx.staging())
+            Files.deleteIfExists(targetPath);
+        return writeAndMove(st, scope, targetPath, null);
+    }
+
+    @Override
+    @SuppressWarnings("UseSpecificCatch")
+    public Void call() throws Exception {
+        final Log log = ctx.log();
+
+        // Get template, and render it while holding the group instance
+        final CompiledGroup.Instance instance = group.acquire();
+        final Result result;
         try {
-            // Render to existing targetPathTmp.
-            final Path targetPathTmp = targetPath.resolveSibling(targetPath.getFileName().toString() + ".tmp");
-            try (OutputStream os = newOutputStream(targetPathTmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
-                if (withUnicodeBOM && null != unicodeBOM)
-                    unicodeBOM.write(os);
-                final Writer w = new OutputStreamWriter(os, targetCharset);
-
-                // Must provide listener to writer, because don't want it to use STGroup one when concurrent use stops
-                // causing errors.
-                final STWriter stWriter = autoIndent
-                                          ? new AutoIndentWriter(w)
-                                          : new NoIndentWriter(w);
-                // Lock st, because can't find a way to make it Thread-safe
-                st.write(stWriter, this); // Use own listener, because STGroup one must be locked to use it's one.
-                w.flush();
+            final ST st = getST(instance, attributeScope);
+            this.st = st;
+
+            // Render template
+            try {
+                result = render(st, attributeScope, targetPath, inputs);
+            } catch (Exception e) {
+                throw new STException("render failed for " + this, e);
             }
-            move(targetPathTmp, targetPath);
-        } catch (Exception e) {
-            throw new STException("render failed for " + this, e);
+        } finally {
+            group.release(instance);
         }
+        this.result = result;
         if (failed)
             throw new STException("render failed for " + this, null);
 
-        log.info(format("Render completed for Template id \"%s\"", id));
+        log.info(format("Render completed for Template id \"%s\" (%s)", id, result));
+        ctx.onRendered(result);
+
+        recordDependencies();
 
         if (isJava)
             ctx.onGeneratedSourcesJavaFile();
@@ -270,6 +723,172 @@ public final class Template implements STErrorConsumer, Callable<Void> {
         return null;
     }
 
+    /**
+     * Writes buffer, or renders if null, to a temporary sibling of targetPath, then moves it to targetPath, so that
+     * targetPath is never seen partially written.
+     * <p>
+     * If staged, writes to a staging file instead, which is only moved to targetPath when all renders succeeded.
+     *
+     * @return the number of bytes written.
+     */
+    private long writeAndMove(final ST st, final AttributeScope scope, final Path targetPath, final Buffer buffer)
+            throws IOException {
+        return writeAndMove(st, scope, targetPath, tmpPath(ctx.staging(), targetPath), buffer);
+    }
+
+    private long writeAndMove(final ST st, final AttributeScope scope, final Path targetPath,
+                              final Path targetPathTmp, final Buffer buffer) throws IOException {
+        final Staging staging = ctx.staging();
+        final boolean fsync = null != staging && staging.fsync();
+        long start = System.nanoTime();
+        final long bytes;
+        try (Sidecars sidecars = Sidecars.open(targetPath, gzip, deflate, compressionLevel, staging, id)) {
+            try (FileChannel channel = FileChannel.open(targetPathTmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                if (null == buffer) {
+                    final long chars;
+                    try (EncodingWriter w = EncodingWriter.open(targetCharset,
+                                                                null == sidecars ? channel : sidecars.tee(channel))) {
+                        chars = write(st, scope, w);
+                    }
+                    final long rendered = System.nanoTime();
+                    metrics.rendered(rendered - start, chars, channel.position());
+                    start = rendered;
+                } else {
+                    buffer.writeTo(channel);
+                    if (null != sidecars)
+                        buffer.writeTo(sidecars);
+                }
+                bytes = channel.position();
+                if (fsync)
+                    channel.force(false);
+            }
+            if (null == staging)
+                move(targetPathTmp, targetPath);
+            if (null != sidecars)
+                sidecars.commit(fsync);
+        }
+        // A buffer write is timed by render()
+        if (null == buffer)
+            metrics.add(Metrics.Stage.FLUSH_MOVE, System.nanoTime() - start);
+        return bytes;
+    }
+
+    /**
+     * Writes the sidecars of targetPath from buffer, if gzip or deflate.
+     */
+    private void writeSidecars(final Path targetPath, final Buffer buffer) throws IOException {
+        final Staging staging = ctx.staging();
+        try (Sidecars sidecars = Sidecars.open(targetPath, gzip, deflate, compressionLevel, staging, id)) {
+            if (null == sidecars)
+                return;
+            buffer.writeTo(sidecars);
+            sidecars.commit(null != staging && staging.fsync());
+        }
+    }
+
+    // An unchanged target's sidecars are only written if missing, e.g. when gzip or deflate was just enabled
+    private void writeMissingSidecars(final Path targetPath, final Buffer buffer) throws IOException {
+        if (!Sidecars.exist(targetPath, gzip, deflate))
+            writeSidecars(targetPath, buffer);
+    }
+
+    /**
+     * Returns the path to write the content of targetPath to: a temporary sibling, or a staging file, if staged.
+     */
+    private Path tmpPath(final Staging staging, final Path targetPath) {
+        return null == staging
+               ? targetPath.resolveSibling(targetPath.getFileName().toString() + ".tmp")
+               : staging.stage(targetPath, id);
+    }
+
+    /**
+     * Renders to memory, unless an identical render was already done, then hard-links, or copies, an identical target,
+     * if already written, else writes it, like writeIfChanged.
+     *
+     * @return the number of bytes written, or -1 if unchanged.
+     */
+    private long writeDeduplicated(final ST st, final AttributeScope scope, final Path targetPath, final String inputs,
+                                   final Dedup dedup) throws IOException {
+        final long start = System.nanoTime();
+        final Dedup.Rendered prior = dedup.rendered(inputs);
+        Buffer buffer = null;
+        final String digest;
+        if (null == prior) {
+            buffer = new Buffer();
+            final long chars = write(st, scope, buffer);
+            metrics.rendered(System.nanoTime() - start, chars, buffer.size());
+            digest = buffer.digest();
+        } else {
+            digest = prior.digest;
+            if (null != dependencies && null != prior.dependencies)
+                dependencies.addAll(prior.dependencies);
+        }
+        final long rendered = System.nanoTime();
+        try {
+            final Dedup.Written written = dedup.written(digest);
+            if (writeIfChanged) {
+                if (null == buffer) // A skipped render, so compare the identical target
+                    buffer = Buffer.read(written.path);
+                if (buffer.contentEquals(targetPath)) {
+                    writeMissingSidecars(targetPath, buffer);
+                    dedup.add(inputs, digest, targetPath, buffer.size(), dependencies);
+                    return -1;
+                }
+            }
+            final Staging staging = ctx.staging();
+            final Path targetPathTmp = tmpPath(staging, targetPath);
+            final long bytes;
+            if (null == written)
+                bytes = writeAndMove(st, scope, targetPath, targetPathTmp, buffer);
+            else {
+                dedup.linkOrCopy(written.path, targetPathTmp);
+                if (null == staging)
+                    move(targetPathTmp, targetPath);
+                // Never a skipped render, if compressed
+                if (null != buffer)
+                    writeSidecars(targetPath, buffer);
+                bytes = written.size;
+            }
+            // A staged file is complete, and is only moved by commit
+            dedup.add(inputs, digest, null == staging ? targetPath : targetPathTmp, bytes, dependencies);
+            return bytes;
+        } finally {
+            metrics.add(Metrics.Stage.FLUSH_MOVE, System.nanoTime() - rendered);
+        }
+    }
+
+    /**
+     * Renders to memory, then adds the bytes to the archive, as the entry named by entryPath.
+     *
+     * @return the number of bytes written.
+     */
+    private long writeEntry(final ST st, final AttributeScope scope, final Path entryPath) throws IOException {
+        final long start = System.nanoTime();
+        final Buffer buffer = new Buffer();
+        final long chars = write(st, scope, buffer);
+        final long rendered = System.nanoTime();
+        metrics.rendered(rendered - start, chars, buffer.size());
+        // Entry names always use "/"
+        final String name = entryPath.toString().replace(entryPath.getFileSystem().getSeparator(), "/");
+        buffer.addTo(ctx.archive(), name);
+        metrics.add(Metrics.Stage.FLUSH_MOVE, System.nanoTime() - rendered);
+        return buffer.size();
+    }
+
+    private long write(final ST st, final AttributeScope scope, final Buffer buffer) throws IOException {
+        try (EncodingWriter w = EncodingWriter.open(targetCharset, buffer)) {
+            return write(st, scope, w);
+        }
+    }
+
+    /**
+     * Returns the number of chars rendered.
+     */
+    private long write(final ST st, final AttributeScope scope, final EncodingWriter w) throws IOException {
+        // Use own listener, because STGroup one must be locked to use it's one.
+        return CompiledGroup.write(st, w, withUnicodeBOM ? unicodeBOM : null, autoIndent, this, scope, dependencies);
+    }
+
     @Override
     @SuppressWarnings({"UseSpecificCatch", "null"})
     public void accept(final String type, STMessage msg) {
@@ -290,4 +909,99 @@ public final class Template implements STErrorConsumer, Callable<Void> {
     }
 
     static final Pattern LINE_COLUMN = compile(" (\\d+):\\d+ ");
+    private static final Pattern PLACEHOLDER = compile("\\{([^{}]+)}");
+
+    /**
+     * The attributes and target of a dataset element.
+     */
+    private static final class Output {
+        final Map<String, Object> attributes;
+        final Path targetPath;
+        final boolean isJava;
+        // A digest of the render inputs, for dedup
+        String inputs;
+
+        private Output(final Map<String, Object> attributes, final Path targetPath, final boolean isJava) {
+            this.attributes = attributes;
+            this.targetPath = targetPath;
+            this.isJava = isJava;
+        }
+    }
+
+    /**
+     * The outcome of a successful render.
+     */
+    enum Result {
+        /**
+         * The target file was created or replaced.
+         */
+        WRITTEN,
+        /**
+         * The target file already had the rendered content, so was left untouched.
+         */
+        UNCHANGED;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Exposes the buffer, to allow comparison without a copy.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+        private Buffer() {
+            super(8192);
+        }
+
+        static Buffer read(final Path path) throws IOException {
+            final Buffer buffer = new Buffer();
+            Files.copy(path, buffer);
+            return buffer;
+        }
+
+        String digest() {
+            return new Fingerprint().add(buf, count).toHex();
+        }
+
+        void writeTo(final Sidecars sidecars) throws IOException {
+            sidecars.write(buf, 0, count);
+        }
+
+        void addTo(final Archive archive, final String name) throws IOException {
+            archive.add(name, buf, count);
+        }
+
+        void writeTo(final FileChannel channel) throws IOException {
+            final ByteBuffer bb = ByteBuffer.wrap(buf, 0, count);
+            while (bb.hasRemaining())
+                channel.write(bb);
+        }
+
+        /**
+         * Streams the file, so stops at the first difference, and never reads more than one chunk of the file at a
+         * time.
+         */
+        boolean contentEquals(final Path path) throws IOException {
+            final BasicFileAttributes attributes = existsAttributes(path);
+            if (null == attributes || !attributes.isRegularFile() || attributes.size() != count)
+                return false;
+            final byte[] chunk = new byte[Math.min(count, 65536)];
+            try (InputStream is = Files.newInputStream(path)) {
+                int offset = 0;
+                while (offset < count) {
+                    final int n = is.read(chunk, 0, Math.min(chunk.length, count - offset));
+                    if (n < 0)
+                        return false;
+                    for (int i = 0; i < n; i++)
+                        if (chunk[i] != buf[offset + i])
+                            return false;
+                    offset += n;
+                }
+                // File may have grown since attributes read
+                return is.read() < 0;
+            }
+        }
+    }
 }
@@ -48,6 +48,10 @@ enum UnicodeBOM {
         os.write(bytes);
     }
 
+    void write(EncodingWriter w) throws IOException {
+        w.writeBytes(bytes);
+    }
+
     // Sadly STGroup is brittle, so we can't inject a wrapper creator
     // to detect Unicode BOM at the start of it's InputStreams.
 
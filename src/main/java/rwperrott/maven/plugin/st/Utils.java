@@ -3,23 +3,34 @@
  */
 package rwperrott.maven.plugin.st;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
+import static java.lang.String.format;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
 import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.nio.file.Paths.get;
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
 import static rwperrott.stringtemplate.v4.STUtils.validateAttributes;
 
 final class Utils {
@@ -31,10 +42,48 @@ final class Utils {
 
     private static final ObjectMapper mapper = new ObjectMapper();
     public static final ObjectReader reader = mapper.reader();
+    public static final ObjectWriter writer = mapper.writer();
 
-    @SuppressWarnings("SameParameterValue")
-    static <V> Map<String, V> readAndCheckJSONMap(final String json, final String name, final int checkDepth) throws IOException {
-        return validateAttributes(reader.readValue(json, Map.class), name, checkDepth);
+    // Used for values from RenderMojo.Context.readJSONFile()
+    static <V> Map<String, V> checkJSONMap(final Object value, final String name, final int checkDepth) {
+        if (!(value instanceof Map))
+            throw new IllegalArgumentException(name + " is not a JSON Map");
+        return validateAttributes((Map<?, ?>) value, name, checkDepth);
+    }
+
+    /**
+     * Returns a new Map of the entries of first, replaced by those of second, or either if the other is null, so that
+     * a cached Map is never modified.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> merge(final Map<String, ?> first, final Map<String, ?> second) {
+        if (null == first)
+            return (Map<String, Object>) second;
+        if (null == second)
+            return (Map<String, Object>) first;
+        final Map<String, Object> map = new LinkedHashMap<>(first);
+        map.putAll(second);
+        return map;
+    }
+
+    /**
+     * Parses a JSON file via a memory mapping, so that it's read from the page cache without a read call per buffer,
+     * nor FileInputStream's copy via a native buffer; the parser still copies the bytes into its own input buffer.
+     *
+     * @param tree if true, returns a JsonNode tree, rather than Maps, Lists and values.
+     */
+    static Object readJSONFile(final Path path, final boolean tree) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(format("\"%s\" is too large to map", path));
+            final MappedByteBuffer buffer = channel.map(READ_ONLY, 0, size);
+            try (JsonParser parser = mapper.getFactory().createParser(new ByteBufferBackedInputStream(buffer))) {
+                return tree
+                       ? reader.readTree(parser)
+                       : reader.forType(Object.class).readValue(parser);
+            }
+        }
     }
 
     // Used by Template.init()
@@ -75,6 +124,16 @@ final class Utils {
         }
     }
 
+    // Java 8 lacks InputStream.readAllBytes()
+    static byte[] readAllBytes(final InputStream is) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(8192);
+        final byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) >= 0)
+            os.write(buf, 0, n);
+        return os.toByteArray();
+    }
+
     static Throwable selectThrow(final ExecutionException ex) {
         final Throwable cause = ex.getCause();
         if (null == cause ||
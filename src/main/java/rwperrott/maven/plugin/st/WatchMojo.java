@@ -0,0 +1,174 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.stringtemplate.v4.compiler.STException;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Renders like the render goal, then keeps the Groups loaded, and watches templateSrcDir, and the files and
+ * directories of all the Groups, re-rendering the Templates of each changed Group, until interrupted, e.g. by Ctrl-C.
+ * <p>
+ * Only a changed .stg file group is reloaded; a changed template file of a directory group is just unloaded, so only
+ * it is recompiled. Changes are debounced, so that saving several files only causes one render, and renders use the
+ * same concurrency as the render goal.
+ * <p>
+ * Incremental rendering isn't used, because all the Templates are rendered once, then only when changed.
+ */
+@SuppressWarnings("ALL")
+@Mojo(name = "watch", threadSafe = true)
+public final class WatchMojo extends RenderMojo {
+    /**
+     * The time in milliseconds, after a change, without another change, before rendering.
+     * <p>
+     * Default is 200
+     */
+    @Parameter(property = "string-template.watchDebounceMillis")
+    public long watchDebounceMillis = 200;
+
+    @Override
+    @SuppressWarnings("UseSpecificCatch")
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        final Log log = getLog();
+        // An archive is written whole, but a watch only re-renders the Templates affected by a change
+        if (null != archiveFile)
+            throw new MojoExecutionException("archiveFile isn't supported by watch");
+        watch = true;
+        try (final Context ctx = new Context(log);
+             final RenderScheduler scheduler = new RenderScheduler(parallelism());
+             final WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            ctx.allOptions();
+            initTemplates(ctx, initGroups(ctx), scheduler);
+            final List<Group> groups = referencedGroups(log);
+            render(ctx, groups, scheduler, log);
+
+            final Map<WatchKey, Path> dirs = new HashMap<>();
+            registerTree(watchService, dirs, ctx.templateSrcDir());
+            for (Group group : groups)
+                register(watchService, dirs, group.sourcePaths());
+            log.info(format("Watching %d directories for changes, press Ctrl-C to stop", dirs.size()));
+
+            while (!Thread.currentThread().isInterrupted()) {
+                final Set<Path> changed = awaitChanges(watchService, dirs, log);
+                final List<Group> affected = new ArrayList<>();
+                for (Group group : groups) {
+                    // null for an overflow, which could be anything
+                    if (null == changed)
+                        group.invalidateAll();
+                    if (null == changed || group.invalidate(changed))
+                        affected.add(group);
+                }
+                if (affected.isEmpty())
+                    continue;
+                log.info(format("Changes affect %d Groups", affected.size()));
+                render(ctx, affected, scheduler, log);
+                // A reload may have added imports
+                for (Group group : affected)
+                    register(watchService, dirs, group.sourcePaths());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Watch failed", e);
+        }
+    }
+
+    /**
+     * Renders the Templates of groups, then commits them if all succeeded, but only logs a failure, so that the watch
+     * continues.
+     */
+    @SuppressWarnings("UseSpecificCatch")
+    private void render(final Context ctx, final List<Group> groups, final RenderScheduler scheduler, final Log log) {
+        failed = false;
+        ctx.resetRenderCounts();
+        if (null != ctx.renderState())
+            ctx.renderState().clearDigests();
+        try {
+            render(groups, scheduler, log);
+        } catch (STException e) {
+            log.error(e.getMessage(), e);
+            failed = true;
+        }
+        if (!failed) {
+            try {
+                ctx.commitStaged();
+                log.info(format("All Groups rendered, %s", ctx.renderCounts()));
+                return;
+            } catch (IOException e) {
+                log.error("Commit of staged targets failed", e);
+            }
+        }
+        ctx.discardStaged();
+        log.error("Render Failed, waiting for changes");
+    }
+
+    /**
+     * Waits for a change, then until there's no change for watchDebounceMillis, returning the changed paths, or null
+     * if any events were lost.
+     */
+    private Set<Path> awaitChanges(final WatchService watchService, final Map<WatchKey, Path> dirs, final Log log)
+            throws InterruptedException, IOException {
+        final Set<Path> changed = new HashSet<>();
+        boolean overflow = false;
+        WatchKey key = watchService.take();
+        do {
+            final Path dir = dirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (OVERFLOW == event.kind()) {
+                    overflow = true;
+                    continue;
+                }
+                final Path path = dir.resolve((Path) event.context());
+                changed.add(path);
+                // Watch new directories, e.g. a new namespace of a directory group
+                if (ENTRY_CREATE == event.kind() && Files.isDirectory(path))
+                    registerTree(watchService, dirs, path);
+            }
+            if (!key.reset())
+                dirs.remove(key);
+        } while (null != (key = watchService.poll(watchDebounceMillis, MILLISECONDS)));
+        if (log.isDebugEnabled())
+            log.debug(format("Changed: %s", changed));
+        return overflow ? null : changed;
+    }
+
+    // A .stg file can only be watched via its directory
+    private static void register(final WatchService watchService, final Map<WatchKey, Path> dirs,
+                                 final Set<Path> sourcePaths) throws IOException {
+        for (Path path : sourcePaths) {
+            if (Files.isDirectory(path))
+                registerTree(watchService, dirs, path);
+            else if (null != path.getParent())
+                registerDir(watchService, dirs, path.getParent());
+        }
+    }
+
+    private static void registerTree(final WatchService watchService, final Map<WatchKey, Path> dirs,
+                                     final Path root) throws IOException {
+        try (Stream<Path> s = Files.walk(root)) {
+            for (Path dir : (Iterable<Path>) s.filter(Files::isDirectory)::iterator)
+                registerDir(watchService, dirs, dir);
+        }
+    }
+
+    private static void registerDir(final WatchService watchService, final Map<WatchKey, Path> dirs,
+                                    final Path dir) throws IOException {
+        final Path normalized = dir.toAbsolutePath().normalize();
+        // Registering again returns the same key
+        dirs.put(normalized.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), normalized);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * See RenderMojo.java for license details/
+ */
+package rwperrott.maven.plugin.st;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.compiler.Compiler;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class CompiledCacheTest {
+    private Path dir;
+    private CompiledCache cache;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("compiled-cache");
+        cache = new CompiledCache(dir.resolve("cache"), new SystemStreamLog());
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void restoredGroupRendersLikeParsed() throws IOException {
+        write("root.stg",
+              "d ::= [\"z\":\"last\", \"a\":\"first\", default:\"other\"]\n"
+              + "page(xs, sep=\", \", title={T<xs:{x|[<x>]}>}) ::= <<\n"
+              + "<title>:<xs:{x|<x>=<d.(x)>}; separator=sep><@foot()>!<d:{k|<k>}>\n"
+              + ">>\n"
+              + "@page.foot() ::= \"F\"\n"
+              + "item(x) ::= \"<x>\"\n"
+              + "list(xs) ::= \"<xs:item()>\"\n");
+        final String parsed = render(load("root.stg"), "page", "a", "z", "q")
+                              + render(load("root.stg"), "list", "1", "2");
+        assertTrue(entries() > 0, "entry written");
+        final String restored = render(load("root.stg"), "page", "a", "z", "q")
+                                + render(load("root.stg"), "list", "1", "2");
+        assertEquals(restored, parsed);
+        assertEquals(parsed, "T[a][z][q]:a=first, z=last, q=otherF!zadefault12");
+    }
+
+    @Test
+    public void restoredAnonSubtemplatesDontShadowImported() throws IOException {
+        write("root.stg", "import \"lib.stg\"\na(xs) ::= \"<xs:{x|A<x>}>\"\n");
+        write("lib.stg", "b(ys) ::= \"<ys:{y|B<y>}>\"\n");
+        assertEquals(render(load("root.stg"), "b", "1", "2"), "B1B2");
+        assertTrue(entries() > 0, "entry written");
+        // Like a new build, which numbers sub-templates from 1 again
+        Compiler.subtemplateCount.set(0);
+        final STGroup restored = load("root.stg");
+        assertEquals(render(restored, "b", "1", "2"), "B1B2");
+        assertEquals(render(restored, "a", "1", "2"), "A1A2");
+    }
+
+    private void write(final String name, final String text) throws IOException {
+        Files.write(dir.resolve(name), text.getBytes(UTF_8));
+    }
+
+    private STGroup load(final String name) throws IOException {
+        final STGroup group = new CompiledCache.GroupFile(dir.resolve(name).toUri().toURL(), "UTF-8", cache);
+        group.load();
+        return group;
+    }
+
+    private long entries() throws IOException {
+        try (Stream<Path> paths = Files.list(dir.resolve("cache"))) {
+            return paths.filter(p -> p.toString().endsWith(".cst")).count();
+        }
+    }
+
+    private static String render(final STGroup group, final String name, final String... xs) {
+        final ST st = group.getInstanceOf(name);
+        st.add(st.impl.formalArguments.keySet().iterator().next(), Arrays.asList(xs));
+        return st.render();
+    }
+}